@@ -0,0 +1,65 @@
+/**
+ * Inputs shared by the benchmark workloads, at the shapes used during
+ * training: 200 examples of 50x50 drawings plus a bias, 25 hidden units
+ * plus a bias and 2 labels.
+ */
+
+import java.awt.*;
+import java.util.ArrayList;
+import java.util.Random;
+
+final class BenchmarkData {
+
+    static final int examples = 200;
+    static final int inputs = 2501;
+    static final int hidden = 25;
+    static final int labels = 2;
+
+    private BenchmarkData() {
+    }
+
+    // The same seed each time, so every run times the same values.
+    static Random random() {
+        return new Random(42);
+    }
+
+    static Matrix randomMatrix(Random rGen, int rows, int columns) {
+        Matrix result = new Matrix(rows, columns);
+        for (int i = 0; i < rows; i++) {
+            for (int j = 0; j < columns; j++) {
+                result.setObjectAtPoint(i, j, rGen.nextDouble() * 2 - 1);
+            }
+        }
+        return result;
+    }
+
+    // Each element is non zero with probability density.
+    static Matrix randomSparseMatrix(Random rGen, int rows, int columns, double density) {
+        Matrix result = new Matrix(rows, columns);
+        for (int i = 0; i < rows; i++) {
+            for (int j = 0; j < columns; j++) {
+                if (rGen.nextDouble() < density) result.setObjectAtPoint(i, j, rGen.nextDouble());
+            }
+        }
+        return result;
+    }
+
+    // One hot rows, as the network turns its labels into.
+    static Matrix randomLabels(Random rGen, int rows, int columns) {
+        Matrix result = new Matrix(rows, columns);
+        for (int i = 0; i < rows; i++) {
+            result.setObjectAtPoint(i, rGen.nextInt(columns), 1);
+        }
+        return result;
+    }
+
+    // A circle drawn as one continuous stroke, the kind of path Play hands the network.
+    static ArrayList<Point> circleDrawing(int radius) {
+        ArrayList<Point> result = new ArrayList<Point>();
+        for (int degree = 0; degree < 360; degree++) {
+            double angle = Math.toRadians(degree);
+            result.add(new Point(100 + (int) (radius * Math.cos(angle)), 100 + (int) (radius * Math.sin(angle))));
+        }
+        return result;
+    }
+}
@@ -0,0 +1,76 @@
+/**
+ * The workloads of benchmarks.DrawingBenchmark: turning a drawing into the
+ * network's features, through the full resolution canvas as the saved
+ * networks were trained and straight onto the grid, and scaling the canvas
+ * down to the usual size and to a smaller input layer.
+ */
+
+import java.awt.*;
+import java.util.ArrayList;
+
+import benchmarks.Workload;
+import benchmarks.WorkloadFactory;
+
+public class DrawingWorkloads implements WorkloadFactory {
+
+    public Workload create(String name) {
+        final ArrayList<Point> drawing = BenchmarkData.circleDrawing(80);
+        // The same number of points drawn five times the size.
+        final ArrayList<Point> largeDrawing = BenchmarkData.circleDrawing(400);
+        final StrokeRasterizer rasterizer = new StrokeRasterizer();
+        final Matrix features = new Matrix(StrokeRasterizer.gridSize, StrokeRasterizer.gridSize);
+
+        if (name.equals("preprocessDrawing")) {
+            return new Workload() {
+                public double run() {
+                    numberExtractor scaler = new numberExtractor();
+                    ArrayList<Point> scaledPoints = scaler.scalePoints(drawing);
+                    Matrix pointsMatrix = new Matrix(null);
+                    pointsMatrix.makeMatrixFromPointsArrayList(scaledPoints, scaler.boundingBoxForSingleShape());
+                    pointsMatrix.emulateWriting();
+                    return pointsMatrix.scaleDown().objectAtPoint(0, 0);
+                }
+            };
+        } else if (name.equals("rasteriseDrawing")) {
+            return new Workload() {
+                public double run() {
+                    return rasterizer.rasterise(drawing, features).objectAtPoint(0, 0);
+                }
+            };
+        } else if (name.equals("rasteriseLargeDrawing")) {
+            return new Workload() {
+                public double run() {
+                    return rasterizer.rasterise(largeDrawing, features).objectAtPoint(0, 0);
+                }
+            };
+        }
+
+        final Matrix canvas = new Matrix(null);
+        numberExtractor canvasScaler = new numberExtractor();
+        canvas.makeMatrixFromPointsArrayList(canvasScaler.scalePoints(largeDrawing), canvasScaler.boundingBoxForSingleShape());
+        canvas.emulateWriting();
+        if (name.equals("scaleDownCanvas")) {
+            return new Workload() {
+                public double run() {
+                    return canvas.scaleDownInto(features).objectAtPoint(0, 0);
+                }
+            };
+        } else if (name.equals("downsampleCanvas_50x50")) {
+            final Downsampler downsampler = new Downsampler(StrokeRasterizer.gridSize, StrokeRasterizer.gridSize);
+            return new Workload() {
+                public double run() {
+                    return downsampler.downsampleInto(canvas, features).objectAtPoint(0, 0);
+                }
+            };
+        } else if (name.equals("downsampleCanvas_28x28")) {
+            final Downsampler downsampler = new Downsampler(28, 28);
+            final Matrix smallFeatures = new Matrix(28, 28);
+            return new Workload() {
+                public double run() {
+                    return downsampler.downsampleInto(canvas, smallFeatures).objectAtPoint(0, 0);
+                }
+            };
+        }
+        throw new IllegalArgumentException("Unknown drawing workload: " + name);
+    }
+}
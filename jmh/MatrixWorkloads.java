@@ -0,0 +1,114 @@
+/**
+ * The workloads of benchmarks.MatrixBenchmark: the products and element-wise
+ * operations of a training step at the shapes the game trains at.
+ */
+
+import java.util.Random;
+
+import benchmarks.Workload;
+import benchmarks.WorkloadFactory;
+
+public class MatrixWorkloads implements WorkloadFactory {
+
+    public Workload create(String name) {
+        Random rGen = BenchmarkData.random();
+        int examples = BenchmarkData.examples;
+        int inputs = BenchmarkData.inputs;
+        int hidden = BenchmarkData.hidden;
+        int labels = BenchmarkData.labels;
+        final Matrix a1 = BenchmarkData.randomMatrix(rGen, examples, inputs);
+        final Matrix theta1 = BenchmarkData.randomMatrix(rGen, hidden, inputs);
+        final Matrix z2 = new Matrix(examples, hidden);
+        final Matrix a2 = BenchmarkData.randomMatrix(rGen, examples, hidden + 1);
+        final Matrix theta2 = BenchmarkData.randomMatrix(rGen, labels, hidden + 1);
+        final Matrix z3 = new Matrix(examples, labels);
+        final Matrix delta2 = BenchmarkData.randomMatrix(rGen, examples, hidden);
+        final Matrix delta3 = BenchmarkData.randomMatrix(rGen, examples, labels);
+        final Matrix delta2TimesA1 = new Matrix(hidden, inputs);
+        final Matrix delta3TimesTheta2 = new Matrix(examples, hidden + 1);
+        final Matrix elementwise = BenchmarkData.randomMatrix(rGen, examples, inputs);
+        final Matrix elementwiseDestination = new Matrix(examples, inputs);
+
+        if (name.equals("multiply_200x2501_by_2501x25")) {
+            final Matrix theta1Transposed = theta1.transpose().compactCopy();
+            return new Workload() {
+                public double run() {
+                    return a1.multiplyInto(theta1Transposed, z2).objectAtPoint(0, 0);
+                }
+            };
+        } else if (name.equals("multiplyByTranspose_200x2501_by_25x2501")) {
+            return new Workload() {
+                public double run() {
+                    return a1.multiplyByTransposeInto(theta1, z2).objectAtPoint(0, 0);
+                }
+            };
+        } else if (name.equals("multiplyByTranspose_200x26_by_2x26")) {
+            return new Workload() {
+                public double run() {
+                    return a2.multiplyByTransposeInto(theta2, z3).objectAtPoint(0, 0);
+                }
+            };
+        } else if (name.equals("transposeMultiply_200x25_by_200x2501")) {
+            return new Workload() {
+                public double run() {
+                    return delta2.transposeMultiplyInto(a1, delta2TimesA1).objectAtPoint(0, 0);
+                }
+            };
+        } else if (name.startsWith("sparse")) {
+            // About as dense as the rasterised drawings the network trains on.
+            final SparseMatrix sparseA1 = new SparseMatrix(BenchmarkData.randomSparseMatrix(rGen, examples, inputs, 0.26));
+            if (name.equals("sparseMultiplyByTranspose_200x2501_by_25x2501")) {
+                return new Workload() {
+                    public double run() {
+                        return sparseA1.multiplyByTransposeInto(theta1, z2).objectAtPoint(0, 0);
+                    }
+                };
+            } else if (name.equals("sparseTransposeMultiply_200x25_by_200x2501")) {
+                return new Workload() {
+                    public double run() {
+                        return sparseA1.premultiplyByTransposeInto(delta2, delta2TimesA1).objectAtPoint(0, 0);
+                    }
+                };
+            }
+        } else if (name.equals("multiply_200x2_by_2x26")) {
+            return new Workload() {
+                public double run() {
+                    return delta3.multiplyInto(theta2, delta3TimesTheta2).objectAtPoint(0, 0);
+                }
+            };
+        } else if (name.equals("sigmoid_200x2501")) {
+            return new Workload() {
+                public double run() {
+                    return elementwise.sigmoidInto(elementwiseDestination).objectAtPoint(0, 0);
+                }
+            };
+        } else if (name.equals("hadamardInPlace_200x2501")) {
+            // Close to 1 so repeated products don't drift towards denormals, which are far slower.
+            final Matrix factors = BenchmarkData.randomMatrix(rGen, examples, inputs).scaleInPlace(1e-3)
+                    .scalarAdditionInPlace(1);
+            return new Workload() {
+                public double run() {
+                    return elementwiseDestination.hadamardInPlace(factors).objectAtPoint(0, 0);
+                }
+            };
+        } else if (name.equals("addScaledInPlace_200x2501")) {
+            return new Workload() {
+                public double run() {
+                    return elementwiseDestination.addScaledInPlace(elementwise, 1e-3).objectAtPoint(0, 0);
+                }
+            };
+        } else if (name.equals("costExpressionSum_200x2")) {
+            Matrix probabilities = BenchmarkData.randomMatrix(rGen, examples, labels).expression().sigmoid().evaluate();
+            Matrix binaryLabels = BenchmarkData.randomLabels(rGen, examples, labels);
+            final MatrixExpression cost = binaryLabels.expression().negate().times(probabilities.expression().log())
+                    .minus(binaryLabels.expression().subtractedFrom(1)
+                            .times(probabilities.expression().subtractedFrom(1).log()));
+            return new Workload() {
+                public double run() {
+                    return cost.sum();
+                }
+            };
+        }
+        throw new IllegalArgumentException("Unknown matrix workload: " + name);
+    }
+}
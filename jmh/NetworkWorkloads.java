@@ -0,0 +1,67 @@
+/**
+ * The workloads of benchmarks.NetworkBenchmark: a training step, and
+ * predictions of single drawings and of batches.
+ */
+
+import java.awt.*;
+import java.util.ArrayList;
+import java.util.Random;
+
+import benchmarks.Workload;
+import benchmarks.WorkloadFactory;
+
+public class NetworkWorkloads implements WorkloadFactory {
+
+    public Workload create(String name) {
+        final NeuralNetworkNum network = untrainedNetwork();
+        final ArrayList<Point> drawing = BenchmarkData.circleDrawing(80);
+
+        if (name.equals("gradientDescentIteration")) {
+            // Each call carries on from the weights the last one left, a step does
+            // the same work whatever the weights are so it doesn't change the timing.
+            return new Workload() {
+                public double run() {
+                    return network.gradientDescentStep();
+                }
+            };
+        } else if (name.equals("predictDrawing")) {
+            return new Workload() {
+                public double run() {
+                    return network.predict(drawing);
+                }
+            };
+        } else if (name.equals("inferenceEngine")) {
+            final InferenceEngine engine = network.newInferenceEngine();
+            return new Workload() {
+                public double run() {
+                    return engine.predict(drawing);
+                }
+            };
+        } else if (name.startsWith("predictBatch_")) {
+            int batchSize = Integer.parseInt(name.substring("predictBatch_".length()));
+            final ArrayList<ArrayList<Point>> drawings = new ArrayList<ArrayList<Point>>();
+            for (int i = 0; i < batchSize; i++) {
+                drawings.add(BenchmarkData.circleDrawing(80));
+            }
+            return new Workload() {
+                public double run() {
+                    return network.predictBatch(drawings).getLabel(0);
+                }
+            };
+        }
+        throw new IllegalArgumentException("Unknown network workload: " + name);
+    }
+
+    // A network at the training shapes built with 0 iterations, its weights
+    // are the random ones it starts with. Training doesn't change the shapes,
+    // so a step or a prediction costs the same as with a trained network.
+    private static NeuralNetworkNum untrainedNetwork() {
+        Random rGen = BenchmarkData.random();
+        Matrix trainingData = BenchmarkData.randomMatrix(rGen, BenchmarkData.examples, BenchmarkData.inputs - 1);
+        Matrix trainingLabels = new Matrix(BenchmarkData.examples, 1);
+        for (int i = 0; i < BenchmarkData.examples; i++) {
+            trainingLabels.setObjectAtPoint(i, 0, rGen.nextInt(BenchmarkData.labels));
+        }
+        return new NeuralNetworkNum(trainingData, trainingLabels, 0, null, null);
+    }
+}
@@ -0,0 +1,45 @@
+/**
+ * The workloads of benchmarks.SparseBenchmark, named form_density, eg
+ * sparse_0.26: both first layer products of a training step on 200
+ * examples of which density are non zero, as dense matrices or with the
+ * examples in CSR form.
+ */
+
+import java.util.Random;
+
+import benchmarks.Workload;
+import benchmarks.WorkloadFactory;
+
+public class SparseWorkloads implements WorkloadFactory {
+
+    public Workload create(String name) {
+        int separator = name.indexOf('_');
+        if (separator < 0) throw new IllegalArgumentException("Unknown sparse workload: " + name);
+        String form = name.substring(0, separator);
+        double density = Double.parseDouble(name.substring(separator + 1));
+        Random rGen = BenchmarkData.random();
+        final Matrix a1 = BenchmarkData.randomSparseMatrix(rGen, BenchmarkData.examples, BenchmarkData.inputs, density);
+        final Matrix theta1 = BenchmarkData.randomMatrix(rGen, BenchmarkData.hidden, BenchmarkData.inputs);
+        final Matrix delta2 = BenchmarkData.randomMatrix(rGen, BenchmarkData.examples, BenchmarkData.hidden);
+        final Matrix z2 = new Matrix(BenchmarkData.examples, BenchmarkData.hidden);
+        final Matrix delta2TimesA1 = new Matrix(BenchmarkData.hidden, BenchmarkData.inputs);
+
+        if (form.equals("dense")) {
+            return new Workload() {
+                public double run() {
+                    return a1.multiplyByTransposeInto(theta1, z2).objectAtPoint(0, 0) +
+                            delta2.transposeMultiplyInto(a1, delta2TimesA1).objectAtPoint(0, 0);
+                }
+            };
+        } else if (form.equals("sparse")) {
+            final SparseMatrix sparseA1 = new SparseMatrix(a1);
+            return new Workload() {
+                public double run() {
+                    return sparseA1.multiplyByTransposeInto(theta1, z2).objectAtPoint(0, 0) +
+                            sparseA1.premultiplyByTransposeInto(delta2, delta2TimesA1).objectAtPoint(0, 0);
+                }
+            };
+        }
+        throw new IllegalArgumentException("Unknown sparse workload: " + name);
+    }
+}
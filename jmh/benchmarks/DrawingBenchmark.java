@@ -0,0 +1,48 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Turning a drawing into the network's features, see DrawingWorkloads.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.AverageTime, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Measurement(iterations = 10, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Fork(1)
+public class DrawingBenchmark {
+
+    @Param({
+            "preprocessDrawing",
+            "rasteriseDrawing",
+            "rasteriseLargeDrawing",
+            "scaleDownCanvas",
+            "downsampleCanvas_50x50",
+            "downsampleCanvas_28x28"})
+    public String workload;
+
+    private Workload operation;
+
+    @Setup
+    public void setUp() throws ReflectiveOperationException {
+        operation = Workloads.create("DrawingWorkloads", workload);
+    }
+
+    @Benchmark
+    public double run() {
+        return operation.run();
+    }
+}
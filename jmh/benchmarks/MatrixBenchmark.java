@@ -0,0 +1,54 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The matrix products and element-wise operations of a training step, at
+ * the shapes the game trains at, see MatrixWorkloads.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.AverageTime, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Measurement(iterations = 10, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Fork(1)
+public class MatrixBenchmark {
+
+    @Param({
+            "multiply_200x2501_by_2501x25",
+            "multiplyByTranspose_200x2501_by_25x2501",
+            "multiplyByTranspose_200x26_by_2x26",
+            "transposeMultiply_200x25_by_200x2501",
+            "sparseMultiplyByTranspose_200x2501_by_25x2501",
+            "sparseTransposeMultiply_200x25_by_200x2501",
+            "multiply_200x2_by_2x26",
+            "sigmoid_200x2501",
+            "hadamardInPlace_200x2501",
+            "addScaledInPlace_200x2501",
+            "costExpressionSum_200x2"})
+    public String workload;
+
+    private Workload operation;
+
+    @Setup
+    public void setUp() throws ReflectiveOperationException {
+        operation = Workloads.create("MatrixWorkloads", workload);
+    }
+
+    @Benchmark
+    public double run() {
+        return operation.run();
+    }
+}
@@ -0,0 +1,49 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Both first layer products of a training step, this * Theta1' forward and
+ * delta2' * this for the gradient, dense and in CSR form, over a range of
+ * densities. Where the two cross is SparseMatrix.densityThreshold, see
+ * SparseWorkloads.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.AverageTime, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Measurement(iterations = 10, time = 500, timeUnit = TimeUnit.MILLISECONDS)
+@Fork(1)
+public class SparseBenchmark {
+
+    @Param({"dense", "sparse"})
+    public String form;
+
+    // Fraction of the inputs that are non zero.
+    @Param({"0.1", "0.26", "0.4", "0.55", "0.7", "0.85", "1"})
+    public String density;
+
+    private Workload operation;
+
+    @Setup
+    public void setUp() throws ReflectiveOperationException {
+        operation = Workloads.create("SparseWorkloads", form + "_" + density);
+    }
+
+    @Benchmark
+    public double run() {
+        return operation.run();
+    }
+}
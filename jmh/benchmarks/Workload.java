@@ -0,0 +1,14 @@
+package benchmarks;
+
+/**
+ * A single operation to time, with everything it works on already made.
+ * The game's classes are in the default package, which can't be imported,
+ * while JMH needs its benchmarks in a named one. So the workloads are
+ * written next to the game's classes, in the default package, and reached
+ * from here through WorkloadFactory.
+ */
+public interface Workload {
+
+    // The operation being timed, returns something derived from its result.
+    double run();
+}
@@ -0,0 +1,11 @@
+package benchmarks;
+
+/**
+ * Makes the workloads of one benchmark class by name. Implementations live
+ * in the default package and need a public no argument constructor.
+ */
+public interface WorkloadFactory {
+
+    // The workload called name, set up and ready to run.
+    Workload create(String name);
+}
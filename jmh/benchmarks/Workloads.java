@@ -0,0 +1,16 @@
+package benchmarks;
+
+/**
+ * Loads the workload factories from the default package.
+ */
+final class Workloads {
+
+    private Workloads() {
+    }
+
+    // The workload called name from the factory class factoryName.
+    static Workload create(String factoryName, String name) throws ReflectiveOperationException {
+        WorkloadFactory factory = (WorkloadFactory) Class.forName(factoryName).getDeclaredConstructor().newInstance();
+        return factory.create(name);
+    }
+}
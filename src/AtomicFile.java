@@ -0,0 +1,55 @@
+/**
+ * Replaces files so they are either entirely old or entirely new.
+ * A file is written alongside its destination, under the same name with
+ * ".tmp" on the end, forced to disk and then moved over the destination in
+ * a single step. A failure part way through leaves the old file as it was
+ * and the temporary file deleted.
+ */
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+final class AtomicFile {
+
+    // Writes the contents of a file, see write.
+    interface Contents {
+        void writeTo(FileChannel channel) throws IOException;
+    }
+
+    private AtomicFile() {
+    }
+
+    // Replaces destination with whatever contents writes to the channel it is given.
+    static void write(Path destination, Contents contents) throws IOException {
+        Path temporary = temporary(destination);
+        try {
+            FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+            try {
+                contents.writeTo(channel);
+                channel.force(false);
+            } finally {
+                channel.close();
+            }
+            move(temporary, destination);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    // Where destination is written before it is moved into place, for files
+    // written some other way. The caller deletes it if the move never happens.
+    static Path temporary(Path destination) {
+        destination = destination.toAbsolutePath();
+        return destination.resolveSibling(destination.getFileName() + ".tmp");
+    }
+
+    // Moves a finished temporary file over destination in one step.
+    static void move(Path temporary, Path destination) throws IOException {
+        Files.move(temporary, destination, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,100 @@
+/**
+ * Loads or trains the classifier and predicts drawings on a background thread
+ * so the Swing event dispatch thread is never held up by either.
+ * Results come back as CompletableFutures, which complete on the background
+ * thread. Anything that touches Swing should be chained on with the *Async
+ * methods and eventDispatchThread, eg:
+ * service.classify(points).thenAcceptAsync(callback, ClassificationService.eventDispatchThread)
+ * Everything runs on the one thread in the order it was asked for, so the
+ * classifier's inference engine is only ever used by that thread.
+ */
+
+import javax.swing.*;
+import java.awt.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+public final class ClassificationService {
+
+    // Runs tasks on the Swing event dispatch thread.
+    public static final Executor eventDispatchThread = new Executor() {
+        public void execute(Runnable task) {
+            SwingUtilities.invokeLater(task);
+        }
+    };
+
+    // Gets the classifier, by loading or training it.
+    public interface Loader {
+        // progress is to be told how training is going, if there is any.
+        NeuralNetworkNum load(TrainingOptions.ProgressListener progress) throws Exception;
+    }
+
+    // Starts loading the classifier with loader straight away.
+    public ClassificationService(final Loader loader) {
+        executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable task) {
+                Thread thread = new Thread(task, "classifier");
+                // Closing the window exits whether or not training has finished.
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        final TrainingOptions.ProgressListener progressListener = new TrainingOptions.ProgressListener() {
+            public void progress(int done, int total, double cost) {
+                progress = total > 0 ? Math.min(1.0, (double) done / total) : 0;
+            }
+        };
+        classifier = CompletableFuture.supplyAsync(new Supplier<NeuralNetworkNum>() {
+            public NeuralNetworkNum get() {
+                try {
+                    NeuralNetworkNum result = loader.load(progressListener);
+                    inferenceEngine = result.newInferenceEngine();
+                    progress = 1;
+                    return result;
+                } catch (Exception e) {
+                    throw new CompletionException(e);
+                }
+            }
+        }, executor);
+    }
+
+    // Completes with the classifier once it has been loaded or trained.
+    public CompletableFuture<NeuralNetworkNum> getClassifier() {
+        return classifier;
+    }
+
+    // Fraction of the classifier's training done, 1 once it is ready.
+    public double getProgress() {
+        return progress;
+    }
+
+    // Predicts a drawing once the classifier is ready.
+    // The points are copied, so the caller is free to carry on with the list.
+    public CompletableFuture<Prediction> classify(List<Point> drawing) {
+        final ArrayList<Point> points = new ArrayList<Point>(drawing);
+        return classifier.thenApplyAsync(new Function<NeuralNetworkNum, Prediction>() {
+            public Prediction apply(NeuralNetworkNum network) {
+                return inferenceEngine.classify(points);
+            }
+        }, executor);
+    }
+
+    // Stops the background thread once it has done what it was asked to.
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    private final ExecutorService executor;
+    private final CompletableFuture<NeuralNetworkNum> classifier;
+    // Only used on the executor's thread.
+    private InferenceEngine inferenceEngine;
+    private volatile double progress;
+}
@@ -0,0 +1,243 @@
+/**
+ * Rebuilds the training data files from the raw strokes of the drawings
+ * they were made from, using every core.
+ * Strokes files hold one drawing a line, its label then its points:
+ *   label x,y x,y ...
+ * trainingDataGen appends each drawing it adds to one, so the data can be
+ * regenerated whenever the preprocessing changes.
+ *
+ * The strokes are read in batches, each batch is turned into feature rows by
+ * a pool of workers, and a writer writes the finished batches out in the
+ * order they were read. The queue of batches between reading and writing is
+ * bounded, so reading waits for the workers and writer to catch up rather
+ * than holding the whole dataset in memory.
+ * Rows are written in the format gameManager.getTrainingData reads, the
+ * features being StrokeRasterizer's so they are the same ones predict uses.
+ *
+ * java DatasetBuilder <strokes> <data> <labels> [threads]
+ */
+
+import java.awt.*;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+public final class DatasetBuilder {
+
+    // Drawings handed to a worker at a time.
+    private static final int batchSize = 64;
+    // Batches read ahead of the writer for each worker.
+    private static final int batchesPerThread = 4;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3 || args.length > 4) {
+            System.out.println("java DatasetBuilder <strokes> <data> <labels> [threads]");
+            return;
+        }
+        int threads = args.length == 4 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+        long start = System.nanoTime();
+        int drawings = build(Paths.get(args[0]), Paths.get(args[1]), Paths.get(args[2]), threads);
+        System.out.println(drawings + " drawings in " + (System.nanoTime() - start) / 1000000 + "ms on " +
+                threads + " threads");
+    }
+
+    // Writes the features and labels of every drawing in strokes to data and labels,
+    // replacing them, and returns how many drawings there were.
+    // Each is written alongside and moved into place once complete, so a failure
+    // part way through leaves the old files as they were.
+    public static int build(Path strokes, Path data, Path labels, int threads) throws IOException {
+        Path dataTemporary = AtomicFile.temporary(data);
+        Path labelsTemporary = AtomicFile.temporary(labels);
+        try {
+            int drawings;
+            BufferedReader reader = Files.newBufferedReader(strokes, StandardCharsets.UTF_8);
+            try {
+                BufferedWriter dataWriter = Files.newBufferedWriter(dataTemporary, StandardCharsets.UTF_8);
+                try {
+                    BufferedWriter labelWriter = Files.newBufferedWriter(labelsTemporary, StandardCharsets.UTF_8);
+                    try {
+                        drawings = build(reader, dataWriter, labelWriter, threads);
+                    } finally {
+                        labelWriter.close();
+                    }
+                } finally {
+                    dataWriter.close();
+                }
+            } finally {
+                reader.close();
+            }
+            AtomicFile.move(dataTemporary, data);
+            AtomicFile.move(labelsTemporary, labels);
+            return drawings;
+        } finally {
+            Files.deleteIfExists(dataTemporary);
+            Files.deleteIfExists(labelsTemporary);
+        }
+    }
+
+    // As above, from and to already open streams, which are left open.
+    // Lines that aren't drawings are reported and skipped.
+    public static int build(Reader strokes, final Writer data, final Writer labels, int threads) throws IOException {
+        if (threads < 1) throw new IllegalArgumentException("Threads must be at least 1: " + threads);
+        ExecutorService workers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            public Thread newThread(Runnable task) {
+                Thread thread = new Thread(task, "dataset worker");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        // A rasterizer for each worker, as it reuses its buffers.
+        final ThreadLocal<StrokeRasterizer> rasterizers = new ThreadLocal<StrokeRasterizer>() {
+            protected StrokeRasterizer initialValue() {
+                return new StrokeRasterizer();
+            }
+        };
+        // Batches in the order they were read, the end of the strokes is an empty batch.
+        final BlockingQueue<Future<Batch>> pending = new ArrayBlockingQueue<Future<Batch>>(threads * batchesPerThread);
+        final Batch end = new Batch(0);
+        ExecutorService writing = Executors.newSingleThreadExecutor();
+        Future<Integer> writer = writing.submit(new Callable<Integer>() {
+            public Integer call() throws Exception {
+                int written = 0;
+                for (Batch batch = pending.take().get(); batch != end; batch = pending.take().get()) {
+                    data.append(batch.rows);
+                    labels.append(batch.labels);
+                    written += batch.drawings;
+                }
+                data.flush();
+                labels.flush();
+                return written;
+            }
+        });
+
+        try {
+            BufferedReader reader = strokes instanceof BufferedReader ? (BufferedReader) strokes : new BufferedReader(strokes);
+            int lineNumber = 0;
+            List<String> lines = new ArrayList<String>(batchSize);
+            for (String line = reader.readLine(); ; line = reader.readLine()) {
+                if (line != null) {
+                    lineNumber++;
+                    lines.add(line);
+                }
+                if (lines.size() == batchSize || (line == null && !lines.isEmpty())) {
+                    final List<String> batchLines = lines;
+                    final int firstLine = lineNumber - lines.size() + 1;
+                    Future<Batch> batch = workers.submit(new Callable<Batch>() {
+                        public Batch call() {
+                            return preprocess(batchLines, firstLine, rasterizers.get());
+                        }
+                    });
+                    enqueue(pending, batch, writer);
+                    lines = new ArrayList<String>(batchSize);
+                }
+                if (line == null) break;
+            }
+            enqueue(pending, CompletableFuture.completedFuture(end), writer);
+            return writer.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted building the dataset", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to build the dataset", e.getCause());
+        } finally {
+            workers.shutdownNow();
+            writing.shutdownNow();
+        }
+    }
+
+    // A line for a strokes file: the label then each point as x,y.
+    public static String toStrokesLine(int label, List<Point> drawing) {
+        StringBuilder line = new StringBuilder();
+        line.append(label);
+        for (Point point : drawing) {
+            line.append(' ').append(point.x).append(',').append(point.y);
+        }
+        return line.toString();
+    }
+
+    // Appends the features of a drawing as a line of the data file.
+    public static void appendRow(StringBuilder row, Matrix features) {
+        for (int i = 0; i < features.getRows(); i++) {
+            for (int j = 0; j < features.getColumns(); j++) {
+                row.append(features.objectAtPoint(i, j)).append(' ');
+            }
+        }
+        row.append('\n');
+    }
+
+    // Turns a batch of lines of a strokes file into lines of the data and label files.
+    private static Batch preprocess(List<String> lines, int firstLine, StrokeRasterizer rasterizer) {
+        Batch batch = new Batch(lines.size());
+        Matrix features = new Matrix(StrokeRasterizer.gridSize, StrokeRasterizer.gridSize);
+        ArrayList<Point> drawing = new ArrayList<Point>();
+        for (int k = 0; k < lines.size(); k++) {
+            String[] fields = lines.get(k).trim().split("\\s+");
+            drawing.clear();
+            try {
+                int label = Integer.parseInt(fields[0]);
+                for (int f = 1; f < fields.length; f++) {
+                    int comma = fields[f].indexOf(',');
+                    drawing.add(new Point(Integer.parseInt(fields[f].substring(0, comma)),
+                            Integer.parseInt(fields[f].substring(comma + 1))));
+                }
+                if (drawing.isEmpty()) {
+                    System.err.println("Line " + (firstLine + k) + " has no points, skipped");
+                    continue;
+                }
+                appendRow(batch.rows, rasterizer.rasterise(drawing, features));
+                batch.labels.append(label).append('\n');
+                batch.drawings++;
+            } catch (RuntimeException e) {
+                // Number format and missing commas alike.
+                System.err.println("Line " + (firstLine + k) + " isn't a drawing, skipped: " + e);
+            }
+        }
+        return batch;
+    }
+
+    // Waits while the writer is a full queue behind, unless it has failed,
+    // in which case its failure is thrown.
+    private static void enqueue(BlockingQueue<Future<Batch>> pending, Future<Batch> batch, Future<Integer> writer)
+            throws InterruptedException, ExecutionException {
+        while (!pending.offer(batch, 100, TimeUnit.MILLISECONDS)) {
+            if (writer.isDone()) {
+                writer.get();
+                throw new IllegalStateException("Writer finished before the end of the strokes");
+            }
+        }
+    }
+
+    // The lines of the data and label files for a batch of drawings.
+    private static final class Batch {
+
+        Batch(int size) {
+            rows = new StringBuilder(size * StrokeRasterizer.gridSize * StrokeRasterizer.gridSize * 4);
+            labels = new StringBuilder(size * 2);
+        }
+
+        final StringBuilder rows;
+        final StringBuilder labels;
+        int drawings;
+    }
+
+    private DatasetBuilder() {
+    }
+}
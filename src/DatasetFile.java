@@ -0,0 +1,324 @@
+/**
+ * Reads and writes training data, features and labels together, as one
+ * compact binary file that loads far faster than the text files.
+ * Reading memory maps the file and copies each section straight into the
+ * array behind its matrix, there is no parsing and nothing in between.
+ * Features can be stored as doubles, as floats, or quantized to a byte
+ * each over the range the features take, a quarter the size of floats.
+ *
+ * Layout, little endian:
+ *   int magic, int version, int encoding (0 double, 1 float, 2 byte),
+ *   int rows, int columns, int label columns, double minimum, double step,
+ *   long CRC32 of everything after the header,
+ *   then the features, rows*columns values row after row,
+ *   padded to 8 bytes, then the labels, rows*label columns ints.
+ * A byte b stands for minimum + b * step, for the other encodings minimum
+ * and step are 0 and 1.
+ *
+ * Reading checks the header against the file's size but not the checksum,
+ * which would mean reading every page of the file, verify checks that.
+ *
+ * java DatasetFile <data.txt> <labels.txt> <dataset.bin> [double|float|byte]
+ * converts the text files gameManager.getTrainingData reads.
+ * java DatasetFile --verify <dataset.bin> checks a dataset against its checksum.
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+public final class DatasetFile {
+
+    // How features are stored.
+    public enum Encoding {
+        DOUBLE(8), FLOAT(4), BYTE(1);
+
+        Encoding(int bytes) {
+            this.bytes = bytes;
+        }
+
+        final int bytes;
+    }
+
+    // "OXDS"
+    private static final int magic = 0x4F584453;
+    private static final int version = 1;
+    private static final int headerBytes = 4 * 6 + 8 * 2 + 8;
+    // Values are written through a buffer this big.
+    private static final int chunkBytes = 1 << 20;
+
+    private DatasetFile() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 2 && args[0].equals("--verify")) {
+            verify(args[1]);
+            System.out.println(args[1] + " matches its checksum");
+            return;
+        }
+        if (args.length < 3 || args.length > 4) {
+            System.out.println("java DatasetFile <data.txt> <labels.txt> <dataset.bin> [double|float|byte]");
+            System.out.println("java DatasetFile --verify <dataset.bin>");
+            return;
+        }
+        Encoding encoding = args.length == 4 ? Encoding.valueOf(args[3].toUpperCase()) : Encoding.FLOAT;
+        long start = System.nanoTime();
+        Matrix features = gameManager.getTrainingData(args[0]);
+        Matrix labels = gameManager.getTrainingData(args[1]);
+        write(args[2], features, labels, encoding);
+        System.out.println("Wrote " + features.getRows() + " rows of " + features.getColumns() + " features as " +
+                encoding + " in " + (System.nanoTime() - start) / 1000000 + "ms");
+    }
+
+    // Writes the features and labels, one row for each example, to filename.
+    // Labels must be whole numbers. The file is written alongside and then
+    // moved into place, so a failure part way through leaves the old one.
+    public static void write(String filename, final Matrix features, final Matrix labels, final Encoding encoding)
+            throws IOException {
+        if (features.getRows() != labels.getRows()) {
+            throw new IllegalArgumentException("Features and labels have different numbers of rows: " +
+                    features.getRows() + " != " + labels.getRows());
+        }
+        int rows = features.getRows();
+        int columns = features.getColumns();
+        double minimum = 0;
+        double step = 1;
+        if (encoding == Encoding.BYTE) {
+            double maximum = Double.NEGATIVE_INFINITY;
+            minimum = Double.POSITIVE_INFINITY;
+            for (int i = 0; i < rows; i++) {
+                for (int j = 0; j < columns; j++) {
+                    minimum = Math.min(minimum, features.objectAtPoint(i, j));
+                    maximum = Math.max(maximum, features.objectAtPoint(i, j));
+                }
+            }
+            if (rows * columns == 0) minimum = maximum = 0;
+            step = maximum > minimum ? (maximum - minimum) / 255 : 1;
+        }
+
+        final double featureMinimum = minimum;
+        final double featureStep = step;
+        AtomicFile.write(Paths.get(filename), new AtomicFile.Contents() {
+            public void writeTo(FileChannel channel) throws IOException {
+                writeContents(channel, features, labels, encoding, featureMinimum, featureStep);
+            }
+        });
+    }
+
+    // Writes the header and everything after it, features encoded as the header says.
+    private static void writeContents(FileChannel channel, Matrix features, Matrix labels, Encoding encoding,
+                                      double minimum, double step) throws IOException {
+        int rows = features.getRows();
+        int columns = features.getColumns();
+        CRC32 checksum = new CRC32();
+        ByteBuffer buffer = ByteBuffer.allocate(chunkBytes).order(ByteOrder.LITTLE_ENDIAN);
+        channel.position(headerBytes);
+        long written = 0;
+        for (int i = 0; i < rows; i++) {
+            for (int j = 0; j < columns; j++) {
+                if (buffer.remaining() < 8) written += drain(buffer, channel, checksum);
+                double value = features.objectAtPoint(i, j);
+                if (encoding == Encoding.DOUBLE) {
+                    buffer.putDouble(value);
+                } else if (encoding == Encoding.FLOAT) {
+                    buffer.putFloat((float) value);
+                } else {
+                    buffer.put((byte) Math.round((value - minimum) / step));
+                }
+            }
+        }
+        while ((written + buffer.position()) % 8 != 0) buffer.put((byte) 0);
+        for (int i = 0; i < rows; i++) {
+            for (int j = 0; j < labels.getColumns(); j++) {
+                if (buffer.remaining() < 8) drain(buffer, channel, checksum);
+                double label = labels.objectAtPoint(i, j);
+                if (label != Math.rint(label)) {
+                    throw new IllegalArgumentException("Label isn't a whole number: " + label + " in row " + i);
+                }
+                buffer.putInt((int) label);
+            }
+        }
+        drain(buffer, channel, checksum);
+
+        ByteBuffer header = ByteBuffer.allocate(headerBytes).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(magic).putInt(version).putInt(encoding.ordinal())
+                .putInt(rows).putInt(columns).putInt(labels.getColumns())
+                .putDouble(minimum).putDouble(step).putLong(checksum.getValue());
+        header.flip();
+        channel.position(0);
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+    }
+
+    // Memory maps filename and reads back {features, labels}, the features in
+    // the given precision and the labels as doubles.
+    // Throws if the file is not a valid dataset, the contents aren't checked
+    // against the checksum, see verify.
+    public static Matrix[] read(String filename, Precision precision) throws IOException {
+        FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+        try {
+            Header header = readHeader(channel, filename);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, header.end);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            buffer.position(headerBytes);
+            int rows = header.rows;
+            int columns = header.columns;
+            long labelsStart = header.labelsStart;
+
+            Matrix features;
+            if (header.encoding == Encoding.FLOAT && precision == Precision.FLOAT) {
+                float[] values = new float[rows * columns];
+                buffer.asFloatBuffer().get(values);
+                features = new FloatMatrix(values, rows, columns);
+            } else if (header.encoding == Encoding.DOUBLE && precision == Precision.DOUBLE) {
+                double[] values = new double[rows * columns];
+                buffer.asDoubleBuffer().get(values);
+                features = new Matrix(values, rows, columns);
+            } else {
+                // A row at a time, read in bulk and then converted.
+                float[] floatValues = precision == Precision.FLOAT ? new float[rows * columns] : null;
+                double[] doubleValues = precision == Precision.FLOAT ? null : new double[rows * columns];
+                double[] row = new double[columns];
+                float[] floatRow = header.encoding == Encoding.FLOAT ? new float[columns] : null;
+                byte[] byteRow = header.encoding == Encoding.BYTE ? new byte[columns] : null;
+                for (int i = 0; i < rows; i++) {
+                    if (header.encoding == Encoding.DOUBLE) {
+                        buffer.asDoubleBuffer().get(row);
+                    } else if (header.encoding == Encoding.FLOAT) {
+                        buffer.asFloatBuffer().get(floatRow);
+                        for (int j = 0; j < columns; j++) {
+                            row[j] = floatRow[j];
+                        }
+                    } else {
+                        buffer.get(byteRow, 0, columns);
+                        for (int j = 0; j < columns; j++) {
+                            row[j] = header.minimum + (byteRow[j] & 0xff) * header.step;
+                        }
+                    }
+                    if (header.encoding != Encoding.BYTE) {
+                        buffer.position(buffer.position() + columns * header.encoding.bytes);
+                    }
+                    for (int j = 0; j < columns; j++) {
+                        if (floatValues != null) {
+                            floatValues[i * columns + j] = (float) row[j];
+                        } else {
+                            doubleValues[i * columns + j] = row[j];
+                        }
+                    }
+                }
+                features = floatValues != null ? new FloatMatrix(floatValues, rows, columns) :
+                        new Matrix(doubleValues, rows, columns);
+            }
+
+            buffer.position((int) labelsStart);
+            Matrix labels = new Matrix(rows, header.labelColumns);
+            for (int i = 0; i < rows; i++) {
+                for (int j = 0; j < header.labelColumns; j++) {
+                    labels.setObjectAtPoint(i, j, buffer.getInt());
+                }
+            }
+            return new Matrix[]{features, labels};
+        } finally {
+            channel.close();
+        }
+    }
+
+    // The checksum of a dataset's contents, from its header alone. The contents
+    // aren't checked against it, it is for telling datasets apart.
+    public static long checksum(String filename) throws IOException {
+        FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+        try {
+            return readHeader(channel, filename).checksum;
+        } finally {
+            channel.close();
+        }
+    }
+
+    // Throws if filename is not a valid dataset or its contents don't match
+    // the checksum in its header. This reads the whole file.
+    public static void verify(String filename) throws IOException {
+        FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+        try {
+            Header header = readHeader(channel, filename);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, headerBytes, header.end - headerBytes);
+            CRC32 checksum = new CRC32();
+            checksum.update(buffer);
+            if (checksum.getValue() != header.checksum) {
+                throw new IOException("Dataset file doesn't match its checksum: " + filename);
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    // Reads the header and checks the sizes it gives fit the file, before
+    // anything is mapped or allocated from them.
+    private static Header readHeader(FileChannel channel, String filename) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(headerBytes).order(ByteOrder.LITTLE_ENDIAN);
+        channel.position(0);
+        while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+            // Until the header is read or the file ends.
+        }
+        buffer.flip();
+        if (buffer.remaining() < headerBytes) throw new IOException("Dataset file too short: " + filename);
+        if (buffer.getInt() != magic) throw new IOException("Not a dataset file: " + filename);
+        int fileVersion = buffer.getInt();
+        if (fileVersion != version) throw new IOException("Unsupported dataset file version: " + fileVersion);
+        int encoding = buffer.getInt();
+        if (encoding < 0 || encoding >= Encoding.values().length) {
+            throw new IOException("Unknown feature encoding " + encoding + ": " + filename);
+        }
+        Header header = new Header();
+        header.encoding = Encoding.values()[encoding];
+        header.rows = buffer.getInt();
+        header.columns = buffer.getInt();
+        header.labelColumns = buffer.getInt();
+        header.minimum = buffer.getDouble();
+        header.step = buffer.getDouble();
+        header.checksum = buffer.getLong();
+        // In long, so a corrupt header can't overflow its way past the checks.
+        long features = (long) header.rows * header.columns;
+        long labels = (long) header.rows * header.labelColumns;
+        if (header.rows < 0 || header.columns < 0 || header.labelColumns < 0 ||
+                features > Integer.MAX_VALUE || labels > Integer.MAX_VALUE) {
+            throw new IOException("Bad dataset dimensions " + header.rows + "*" + header.columns + " with " +
+                    header.labelColumns + " label columns: " + filename);
+        }
+        header.labelsStart = headerBytes + (features * header.encoding.bytes + 7) / 8 * 8;
+        header.end = header.labelsStart + labels * 4;
+        if (header.end > Integer.MAX_VALUE) throw new IOException("Dataset file too big to map: " + filename);
+        if (channel.size() < header.end) throw new IOException("Dataset file truncated: " + filename);
+        return header;
+    }
+
+    // Writes out what has been put in buffer, returning how many bytes that was.
+    private static int drain(ByteBuffer buffer, FileChannel channel, CRC32 checksum) throws IOException {
+        buffer.flip();
+        int bytes = buffer.remaining();
+        checksum.update(buffer.array(), 0, bytes);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+        return bytes;
+    }
+
+    private static final class Header {
+        Encoding encoding;
+        int rows;
+        int columns;
+        int labelColumns;
+        double minimum;
+        double step;
+        long checksum;
+        // Where the labels start and end, in bytes from the start of the file.
+        long labelsStart;
+        long end;
+    }
+}
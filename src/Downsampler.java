@@ -0,0 +1,103 @@
+/**
+ * Scales a matrix to any size by averaging boxes of it.
+ * The source's rows are split into boxes of as near equal size as they can
+ * be, so every row falls in exactly one box and none are skipped or counted
+ * twice, whether or not the sizes divide, and the same goes for columns.
+ * When scaling up each element takes the source element it lies over.
+ * The box filter is separable: each band of rows is collapsed into a single
+ * row and summed along it, so a box's sum is the difference of two of those
+ * sums and the source is read just once.
+ * Unlike Matrix.scaleDown the boxes aren't weighted towards their corner,
+ * so the two give different features, the networks saved and the training
+ * data are scaleDown's. This is for trying networks with smaller inputs,
+ * eg 28x28, on drawings rasterised at 50x50.
+ * A downsampler reuses its buffer and isn't safe to use from more than one
+ * thread at once.
+ */
+
+import java.util.Arrays;
+
+public final class Downsampler {
+
+    // Scales to rows*columns.
+    public Downsampler(int rows, int columns) {
+        if (rows <= 0 || columns <= 0) {
+            throw new IllegalArgumentException("Size must be positive: " + rows + "*" + columns);
+        }
+        this.rows = rows;
+        this.columns = columns;
+        columnSums = new double[0];
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    public int getColumns() {
+        return columns;
+    }
+
+    // source scaled to a new rows*columns matrix.
+    public Matrix downsample(Matrix source) {
+        return downsampleInto(source, source.like(rows, columns));
+    }
+
+    // As downsample, overwriting destination, which must be rows*columns.
+    public Matrix downsampleInto(Matrix source, Matrix destination) {
+        if (!destination.hasSize(rows, columns)) return null;
+        source = source.toPrecision(Precision.DOUBLE);
+        double[] data = source.getData();
+        int sourceColumns = source.getColumns();
+        if (columnSums.length < sourceColumns + 1) columnSums = new double[sourceColumns + 1];
+        for (int i = 0; i < rows; i++) {
+            int top = boxStart(i, source.getRows(), rows);
+            int bottom = Math.max(boxStart(i + 1, source.getRows(), rows), Math.min(top + 1, source.getRows()));
+            // The box's rows collapsed into one, then summed along so each box's sum is a difference.
+            Arrays.fill(columnSums, 0, sourceColumns + 1, 0);
+            for (int k = top; k < bottom; k++) {
+                int p = source.index(k, 0);
+                for (int l = 1; l <= sourceColumns; l++, p += source.getColumnStride()) {
+                    columnSums[l] += data[p];
+                }
+            }
+            for (int l = 1; l <= sourceColumns; l++) {
+                columnSums[l] += columnSums[l - 1];
+            }
+            for (int j = 0; j < columns; j++) {
+                int left = boxStart(j, sourceColumns, columns);
+                int right = Math.max(boxStart(j + 1, sourceColumns, columns), Math.min(left + 1, sourceColumns));
+                int area = (bottom - top) * (right - left);
+                destination.setObjectAtPoint(i, j, area == 0 ? 0 : (columnSums[right] - columnSums[left]) / area);
+            }
+        }
+        return destination;
+    }
+
+    // Scales each row of images, a square image laid out as matrixToRowVector
+    // leaves it, giving a row of rows*columns for each, eg to train on
+    // smaller inputs from the existing training data.
+    public Matrix downsampleRows(Matrix images) {
+        int edgeLength = (int) Math.sqrt(images.getColumns());
+        if (edgeLength * edgeLength != images.getColumns()) {
+            throw new IllegalArgumentException("Rows aren't square images: " + images.getColumns() + " columns");
+        }
+        Matrix result = images.like(images.getRows(), rows * columns);
+        int columnStride = images.getColumnStride();
+        for (int r = 0; r < images.getRows(); r++) {
+            Matrix image = images.view(images.index(r, 0), edgeLength, edgeLength, edgeLength * columnStride, columnStride);
+            Matrix row = result.view(result.index(r, 0), rows, columns, columns * result.getColumnStride(),
+                    result.getColumnStride());
+            downsampleInto(image, row);
+        }
+        return result;
+    }
+
+    // Where box i of n starts along an edge of length.
+    private static int boxStart(int i, int length, int n) {
+        return (int) ((long) i * length / n);
+    }
+
+    private final int rows;
+    private final int columns;
+    private double[] columnSums;
+}
@@ -0,0 +1,190 @@
+/**
+ * A Matrix whose elements are stored as 32 bit floats rather than doubles.
+ * This halves the memory and bandwidth taken by large matrices such as
+ * the training data and the network's weights, which is worth far more
+ * than the extra precision for a small sigmoid classifier.
+ * It supports the linear algebra and element-wise functions of Matrix,
+ * including views and products, products accumulate in float.
+ * The drawing pre-processing functions only work on double matrices and
+ * throw UnsupportedOperationException on a FloatMatrix.
+ */
+
+import java.util.Arrays;
+
+public class FloatMatrix extends Matrix {
+
+    // Creates a rows*columns matrix of zeros.
+    public FloatMatrix(int rows, int columns) {
+        this(new float[rows * columns], rows, columns);
+    }
+
+    // Wraps a flat array holding a rows*columns matrix one row after another.
+    // The array is not copied, changes to either are seen by both.
+    public FloatMatrix(float[] rowMajor, int rows, int columns) {
+        this(rowMajor, 0, rows, columns, columns, 1);
+    }
+
+    private FloatMatrix(float[] values, int offset, int rows, int columns, int rowStride, int colStride) {
+        super(null, offset, rows, columns, rowStride, colStride);
+        this.values = values;
+    }
+
+    Matrix view(int viewOffset, int nRows, int nColumns, int viewRowStride, int viewColStride) {
+        return new FloatMatrix(values, viewOffset, nRows, nColumns, viewRowStride, viewColStride);
+    }
+
+    Matrix like(int nRows, int nColumns) {
+        return new FloatMatrix(nRows, nColumns);
+    }
+
+    public Precision getPrecision() {
+        return Precision.FLOAT;
+    }
+
+    // The flat array backing this matrix, shared with any views of it.
+    float[] getFloatData() {
+        return values;
+    }
+
+    public double objectAtPoint(int row, int col) {
+        if (row < 0 || row >= getRows() || col < 0 || col >= getColumns()) {
+            throw new IndexOutOfBoundsException("Index outside " + getRows() + "*" + getColumns() + " matrix: " + row + ", " + col);
+        }
+        return values[index(row, col)];
+    }
+
+    public void setObjectAtPoint(int row, int col, double value) {
+        if (row < 0 || row >= getRows() || col < 0 || col >= getColumns()) {
+            throw new IndexOutOfBoundsException("Index outside " + getRows() + "*" + getColumns() + " matrix: " + row + ", " + col);
+        }
+        values[index(row, col)] = (float) value;
+    }
+
+    public double[][] getMatrix() {
+        double[][] result = new double[getRows()][getColumns()];
+        for (int i = 0; i < getRows(); i++) {
+            for (int j = 0; j < getColumns(); j++) {
+                result[i][j] = values[index(i, j)];
+            }
+        }
+        return result;
+    }
+
+    public Matrix sigmaSumColumnsToRowVector() {
+        FloatMatrix result = new FloatMatrix(1, getColumns());
+        for (int i = 0; i < getRows(); i++) {
+            int p = index(i, 0);
+            for (int j = 0; j < getColumns(); j++, p += getColumnStride()) {
+                result.values[j] += values[p];
+            }
+        }
+        return result;
+    }
+
+    public Matrix copyInto(Matrix destination) {
+        if (!destination.hasSize(getRows(), getColumns())) return null;
+        if (destination.getPrecision() != Precision.FLOAT) return copyElementsInto(destination);
+        float[] result = ((FloatMatrix) destination).values;
+        int colStride = getColumnStride();
+        int resultColStride = destination.getColumnStride();
+        for (int i = 0; i < getRows(); i++) {
+            int p = index(i, 0);
+            int q = destination.index(i, 0);
+            if (colStride == 1 && resultColStride == 1) {
+                System.arraycopy(values, p, result, q, getColumns());
+            } else {
+                for (int j = 0; j < getColumns(); j++, p += colStride, q += resultColStride) {
+                    result[q] = values[p];
+                }
+            }
+        }
+        return destination;
+    }
+
+    public Matrix fill(double value) {
+        float floatValue = (float) value;
+        for (int i = 0; i < getRows(); i++) {
+            int p = index(i, 0);
+            if (getColumnStride() == 1) {
+                Arrays.fill(values, p, p + getColumns(), floatValue);
+            } else {
+                for (int j = 0; j < getColumns(); j++, p += getColumnStride()) {
+                    values[p] = floatValue;
+                }
+            }
+        }
+        return this;
+    }
+
+    public Matrix addScaledInPlace(Matrix sndMatrix, double scale) {
+        if (!this.hasEqualSizeTo(sndMatrix)) return null;
+        FloatMatrix snd = (FloatMatrix) sndMatrix.toPrecision(Precision.FLOAT);
+        float floatScale = (float) scale;
+        int colStride = getColumnStride();
+        int sndColStride = snd.getColumnStride();
+        for (int i = 0; i < getRows(); i++) {
+            int p = index(i, 0);
+            int q = snd.index(i, 0);
+            if (colStride == 1 && sndColStride == 1) {
+                for (int j = 0; j < getColumns(); j++) {
+                    values[p + j] += floatScale * snd.values[q + j];
+                }
+            } else {
+                for (int j = 0; j < getColumns(); j++, p += colStride, q += sndColStride) {
+                    values[p] += floatScale * snd.values[q];
+                }
+            }
+        }
+        return this;
+    }
+
+    public Matrix hadamardInPlace(Matrix sndMatrix) {
+        if (!this.hasEqualSizeTo(sndMatrix)) return null;
+        FloatMatrix snd = (FloatMatrix) sndMatrix.toPrecision(Precision.FLOAT);
+        int colStride = getColumnStride();
+        int sndColStride = snd.getColumnStride();
+        for (int i = 0; i < getRows(); i++) {
+            int p = index(i, 0);
+            int q = snd.index(i, 0);
+            for (int j = 0; j < getColumns(); j++, p += colStride, q += sndColStride) {
+                values[p] *= snd.values[q];
+            }
+        }
+        return this;
+    }
+
+    public Matrix scaleInPlace(double scalar) {
+        float floatScalar = (float) scalar;
+        for (int i = 0; i < getRows(); i++) {
+            int p = index(i, 0);
+            for (int j = 0; j < getColumns(); j++, p += getColumnStride()) {
+                values[p] *= floatScalar;
+            }
+        }
+        return this;
+    }
+
+    public Matrix scalarAdditionInPlace(double scalar) {
+        float floatScalar = (float) scalar;
+        for (int i = 0; i < getRows(); i++) {
+            int p = index(i, 0);
+            for (int j = 0; j < getColumns(); j++, p += getColumnStride()) {
+                values[p] += floatScalar;
+            }
+        }
+        return this;
+    }
+
+    public Matrix nMinusMatrixInPlace(double scalar) {
+        float floatScalar = (float) scalar;
+        for (int i = 0; i < getRows(); i++) {
+            int p = index(i, 0);
+            for (int j = 0; j < getColumns(); j++, p += getColumnStride()) {
+                values[p] = floatScalar - values[p];
+            }
+        }
+        return this;
+    }
+
+    private final float[] values;
+}
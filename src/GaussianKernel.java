@@ -0,0 +1,112 @@
+/**
+ * The weights drawing is emulated and scaled down with, worked out once
+ * for every offset within a radius rather than once per pixel.
+ * weight(a, b) is the normal distribution Matrix has always used, of the
+ * distance of the offset (a, b) from the centre, and brushWeight(a, b) is what
+ * emulateWriting adds to a pixel that far from ink, the weight plus one over
+ * the distance. Both are the values the per pixel formulas give, to the bit.
+ * The weight falls off with the distance rather than its square, so it isn't
+ * a product of a row and a column kernel and is tabulated in two dimensions.
+ * Kernels are cached by radius and sigma and shared, they never change once
+ * made so are safe to read from any thread.
+ */
+
+import java.util.concurrent.ConcurrentHashMap;
+
+public final class GaussianKernel {
+
+    // The kernel covering offsets -radius to radius on each axis, made the first time it is asked for.
+    public static GaussianKernel get(int radius, double sigma) {
+        if (radius < 0) throw new IllegalArgumentException("Radius must not be negative: " + radius);
+        if (!(sigma > 0)) throw new IllegalArgumentException("Sigma must be positive: " + sigma);
+        Key key = new Key(radius, sigma);
+        GaussianKernel kernel = cache.get(key);
+        if (kernel == null) {
+            // Two threads may both make it, they are the same so either will do.
+            GaussianKernel made = new GaussianKernel(radius, sigma);
+            kernel = cache.putIfAbsent(key, made);
+            if (kernel == null) kernel = made;
+        }
+        return kernel;
+    }
+
+    private GaussianKernel(int radius, double sigma) {
+        this.radius = radius;
+        this.sigma = sigma;
+        width = 2 * radius + 1;
+        weights = new double[width * width];
+        brushWeights = new double[width * width];
+        for (int a = -radius; a <= radius; a++) {
+            for (int b = -radius; b <= radius; b++) {
+                double distance = distance(a, b);
+                weights[index(a, b)] = normalDistribution(distance, sigma);
+                // The centre is ink itself, which emulateWriting never adds to.
+                brushWeights[index(a, b)] = distance == 0 ? 0 : weights[index(a, b)] + 1.0 / distance;
+            }
+        }
+    }
+
+    public int getRadius() {
+        return radius;
+    }
+
+    public double getSigma() {
+        return sigma;
+    }
+
+    // The normal distribution at (a, b) from the centre, each within the radius.
+    public double weight(int a, int b) {
+        return weights[index(a, b)];
+    }
+
+    // What emulateWriting adds to a pixel (a, b) from a pixel of ink, 0 at the centre.
+    public double brushWeight(int a, int b) {
+        return brushWeights[index(a, b)];
+    }
+
+    private int index(int a, int b) {
+        return (a + radius) * width + b + radius;
+    }
+
+    // Euclidean distance of (a, b) from the centre.
+    private static double distance(int a, int b) {
+        return Math.sqrt(Math.pow(a, 2.0) + Math.pow(b, 2.0));
+    }
+
+    // Normal distribution formula.
+    private static double normalDistribution(double distance, double sigma) {
+        double leftSide = 1.0 / (sigma * 2.0 * Math.sqrt(2.0 * Math.PI));
+        double rightSide = -distance / (2.0 * Math.pow(sigma, 2.0));
+        return leftSide * Math.exp(rightSide);
+    }
+
+    private static final ConcurrentHashMap<Key, GaussianKernel> cache = new ConcurrentHashMap<Key, GaussianKernel>();
+
+    private final int radius;
+    private final double sigma;
+    private final int width;
+    private final double[] weights;
+    private final double[] brushWeights;
+
+    // What kernels are cached by.
+    private static final class Key {
+
+        Key(int radius, double sigma) {
+            this.radius = radius;
+            this.sigma = sigma;
+        }
+
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) return false;
+            Key key = (Key) other;
+            return radius == key.radius && Double.compare(sigma, key.sigma) == 0;
+        }
+
+        public int hashCode() {
+            return 31 * radius + Double.hashCode(sigma);
+        }
+
+        final int radius;
+        final double sigma;
+    }
+}
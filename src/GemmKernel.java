@@ -0,0 +1,354 @@
+/**
+ * This is the engine behind Matrix's multiplication functions.
+ * Products are computed over cache sized tiles so that a block of
+ * the second matrix stays resident while every row of the first
+ * matrix is streamed past it.
+ * The innermost loops walk along contiguous rows and are handed to
+ * MatrixKernels, which may run them with vector instructions.
+ * Every matrix passed in must have contiguous rows (a column stride of 1)
+ * and the same precision, Matrix takes care of arranging this before calling in.
+ * FloatMatrix products have their own copies of the kernels which
+ * accumulate in float.
+ * Large products are split into tiles of the output which are computed
+ * on a ForkJoinPool. Each output element is always summed in the same
+ * order so the result does not depend on how many threads were used.
+ */
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+final class GemmKernel {
+
+    // Tile edge lengths, chosen so three tiles of doubles fit in a 256KB L2 cache.
+    private static final int rowBlock = 64;
+    private static final int innerBlock = 256;
+    private static final int columnBlock = 512;
+
+    // Products with fewer multiply-adds than this are not worth splitting across threads.
+    private static final long defaultParallelThreshold = 1L << 18;
+
+    // Volatile so a setting made on one thread is seen by products on every other.
+    private static volatile ForkJoinPool pool = ForkJoinPool.commonPool();
+    private static volatile long parallelThreshold = defaultParallelThreshold;
+
+    private GemmKernel() {}
+
+    // Sets the pool products are computed on, null computes every product on the calling thread.
+    static void setPool(ForkJoinPool newPool) {
+        pool = newPool;
+    }
+
+    // Sets the number of multiply-adds a tile must exceed before it is split further.
+    static void setParallelThreshold(long threshold) {
+        parallelThreshold = Math.max(1, threshold);
+    }
+
+    // C += A * B
+    // A is m*k, B is k*n and C is m*n.
+    static void multiply(Matrix a, Matrix b, Matrix c) {
+        run(new Tile(multiply, a, b, c, 0, c.getRows(), 0, c.getColumns(), b.getRows()));
+    }
+
+    // C += A * B'
+    // A is m*k, B is n*k and C is m*n.
+    static void multiplyByTranspose(Matrix a, Matrix b, Matrix c) {
+        run(new Tile(multiplyByTranspose, a, b, c, 0, c.getRows(), 0, c.getColumns(), a.getColumns()));
+    }
+
+    // C += A' * B
+    // A is k*m, B is k*n and C is m*n.
+    static void transposeMultiply(Matrix a, Matrix b, Matrix c) {
+        run(new Tile(transposeMultiply, a, b, c, 0, c.getRows(), 0, c.getColumns(), a.getRows()));
+    }
+
+    // Computes a whole product, on the pool if it is large enough to be worth it.
+    private static void run(Tile tile) {
+        ForkJoinPool current = pool;
+        if (current == null || tile.work() < parallelThreshold) {
+            tile.computeSerially();
+        } else {
+            current.invoke(tile);
+        }
+    }
+
+    // Kinds of product a tile can compute.
+    private static final int multiply = 0;
+    private static final int multiplyByTranspose = 1;
+    private static final int transposeMultiply = 2;
+
+    // A rectangle C[rowStart:rowEnd, colStart:colEnd] of an output matrix.
+    // Tiles are halved along their longest edge until they are small enough to compute directly.
+    // Splitting never divides the inner dimension so every element is summed in the same order.
+    private static final class Tile extends RecursiveAction {
+
+        Tile(int kind, Matrix a, Matrix b, Matrix c,
+             int rowStart, int rowEnd, int colStart, int colEnd, int inner) {
+            this.kind = kind;
+            this.a = a;
+            this.b = b;
+            this.c = c;
+            this.rowStart = rowStart;
+            this.rowEnd = rowEnd;
+            this.colStart = colStart;
+            this.colEnd = colEnd;
+            this.inner = inner;
+        }
+
+        long work() {
+            return (long) (rowEnd - rowStart) * (colEnd - colStart) * inner;
+        }
+
+        protected void compute() {
+            int tileRows = rowEnd - rowStart;
+            int tileColumns = colEnd - colStart;
+            if (work() < parallelThreshold || (tileRows < 2 && tileColumns < 8)) {
+                computeSerially();
+            } else if (tileRows >= tileColumns / 4 && tileRows >= 2) {
+                int middle = rowStart + tileRows / 2;
+                invokeAll(new Tile(kind, a, b, c, rowStart, middle, colStart, colEnd, inner),
+                        new Tile(kind, a, b, c, middle, rowEnd, colStart, colEnd, inner));
+            } else {
+                // Column splits stay multiples of four so the unrolled loops line up.
+                int middle = colStart + ((tileColumns / 2) & ~3);
+                invokeAll(new Tile(kind, a, b, c, rowStart, rowEnd, colStart, middle, inner),
+                        new Tile(kind, a, b, c, rowStart, rowEnd, middle, colEnd, inner));
+            }
+        }
+
+        void computeSerially() {
+            if (c.getPrecision() == Precision.FLOAT) {
+                computeFloatSerially();
+            } else if (kind == multiply) {
+                multiplyRange(a, b, c, rowStart, rowEnd, colStart, colEnd);
+            } else if (kind == multiplyByTranspose) {
+                multiplyByTransposeRange(a, b, c, rowStart, rowEnd, colStart, colEnd);
+            } else {
+                transposeMultiplyRange(a, b, c, rowStart, rowEnd, colStart, colEnd);
+            }
+        }
+
+        void computeFloatSerially() {
+            FloatMatrix fa = (FloatMatrix) a;
+            FloatMatrix fb = (FloatMatrix) b;
+            FloatMatrix fc = (FloatMatrix) c;
+            if (kind == multiply) {
+                multiplyRange(fa, fb, fc, rowStart, rowEnd, colStart, colEnd);
+            } else if (kind == multiplyByTranspose) {
+                multiplyByTransposeRange(fa, fb, fc, rowStart, rowEnd, colStart, colEnd);
+            } else {
+                transposeMultiplyRange(fa, fb, fc, rowStart, rowEnd, colStart, colEnd);
+            }
+        }
+
+        private final int kind;
+        private final Matrix a;
+        private final Matrix b;
+        private final Matrix c;
+        private final int rowStart;
+        private final int rowEnd;
+        private final int colStart;
+        private final int colEnd;
+        private final int inner;
+    }
+
+    // C[rowStart:rowEnd, colStart:colEnd] += A * B
+    // Uses i-k-j ordering so the innermost loop is an axpy along a row of B and C.
+    private static void multiplyRange(Matrix a, Matrix b, Matrix c,
+                                      int rowStart, int rowEnd, int colStart, int colEnd) {
+        MatrixKernels kernels = MatrixKernels.get();
+        double[] aData = a.getData();
+        double[] bData = b.getData();
+        double[] cData = c.getData();
+        int lda = a.getRowStride();
+        int ldb = b.getRowStride();
+        int ldc = c.getRowStride();
+        int k = b.getRows();
+        for (int kk = 0; kk < k; kk += innerBlock) {
+            int kEnd = Math.min(kk + innerBlock, k);
+            for (int jj = colStart; jj < colEnd; jj += columnBlock) {
+                int jEnd = Math.min(jj + columnBlock, colEnd);
+                for (int ii = rowStart; ii < rowEnd; ii += rowBlock) {
+                    int iEnd = Math.min(ii + rowBlock, rowEnd);
+                    for (int i = ii; i < iEnd; i++) {
+                        int aRow = a.getOffset() + i * lda;
+                        int cRow = c.getOffset() + i * ldc;
+                        for (int p = kk; p < kEnd; p++) {
+                            double scalar = aData[aRow + p];
+                            if (scalar != 0) {
+                                kernels.axpy(scalar, bData, b.getOffset() + p * ldb + jj, cData, cRow + jj, jEnd - jj);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    // C[rowStart:rowEnd, colStart:colEnd] += A * B'
+    // Every element of C is a dot product of two contiguous rows so B is never transposed.
+    private static void multiplyByTransposeRange(Matrix a, Matrix b, Matrix c,
+                                                 int rowStart, int rowEnd, int colStart, int colEnd) {
+        MatrixKernels kernels = MatrixKernels.get();
+        double[] aData = a.getData();
+        double[] bData = b.getData();
+        double[] cData = c.getData();
+        int lda = a.getRowStride();
+        int ldb = b.getRowStride();
+        int ldc = c.getRowStride();
+        int k = a.getColumns();
+        for (int kk = 0; kk < k; kk += innerBlock) {
+            int kEnd = Math.min(kk + innerBlock, k);
+            for (int jj = colStart; jj < colEnd; jj += rowBlock) {
+                int jEnd = Math.min(jj + rowBlock, colEnd);
+                for (int i = rowStart; i < rowEnd; i++) {
+                    int aRow = a.getOffset() + i * lda + kk;
+                    int cRow = c.getOffset() + i * ldc;
+                    for (int j = jj; j < jEnd; j++) {
+                        cData[cRow + j] += kernels.dot(aData, aRow, bData, b.getOffset() + j * ldb + kk, kEnd - kk);
+                    }
+                }
+            }
+        }
+    }
+
+    // C[rowStart:rowEnd, colStart:colEnd] += A' * B
+    // Each row of A scatters its elements across the rows of C as axpys of the matching row of B.
+    private static void transposeMultiplyRange(Matrix a, Matrix b, Matrix c,
+                                               int rowStart, int rowEnd, int colStart, int colEnd) {
+        MatrixKernels kernels = MatrixKernels.get();
+        double[] aData = a.getData();
+        double[] bData = b.getData();
+        double[] cData = c.getData();
+        int lda = a.getRowStride();
+        int ldb = b.getRowStride();
+        int ldc = c.getRowStride();
+        int k = a.getRows();
+        for (int jj = colStart; jj < colEnd; jj += columnBlock) {
+            int jEnd = Math.min(jj + columnBlock, colEnd);
+            for (int ii = rowStart; ii < rowEnd; ii += rowBlock) {
+                int iEnd = Math.min(ii + rowBlock, rowEnd);
+                for (int p = 0; p < k; p++) {
+                    int aRow = a.getOffset() + p * lda;
+                    int bRow = b.getOffset() + p * ldb + jj;
+                    for (int i = ii; i < iEnd; i++) {
+                        double scalar = aData[aRow + i];
+                        if (scalar != 0) {
+                            kernels.axpy(scalar, bData, bRow, cData, c.getOffset() + i * ldc + jj, jEnd - jj);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    // Single precision versions of the kernels above, these always run as plain Java.
+
+    private static void multiplyRange(FloatMatrix a, FloatMatrix b, FloatMatrix c,
+                                      int rowStart, int rowEnd, int colStart, int colEnd) {
+        float[] aData = a.getFloatData();
+        float[] bData = b.getFloatData();
+        float[] cData = c.getFloatData();
+        int lda = a.getRowStride();
+        int ldb = b.getRowStride();
+        int ldc = c.getRowStride();
+        int k = b.getRows();
+        for (int kk = 0; kk < k; kk += innerBlock) {
+            int kEnd = Math.min(kk + innerBlock, k);
+            for (int jj = colStart; jj < colEnd; jj += columnBlock) {
+                int jEnd = Math.min(jj + columnBlock, colEnd);
+                for (int ii = rowStart; ii < rowEnd; ii += rowBlock) {
+                    int iEnd = Math.min(ii + rowBlock, rowEnd);
+                    for (int i = ii; i < iEnd; i++) {
+                        int aRow = a.getOffset() + i * lda;
+                        int cRow = c.getOffset() + i * ldc;
+                        for (int p = kk; p < kEnd; p++) {
+                            float scalar = aData[aRow + p];
+                            if (scalar != 0) {
+                                axpy(scalar, bData, b.getOffset() + p * ldb + jj, cData, cRow + jj, jEnd - jj);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static void multiplyByTransposeRange(FloatMatrix a, FloatMatrix b, FloatMatrix c,
+                                                 int rowStart, int rowEnd, int colStart, int colEnd) {
+        float[] aData = a.getFloatData();
+        float[] bData = b.getFloatData();
+        float[] cData = c.getFloatData();
+        int lda = a.getRowStride();
+        int ldb = b.getRowStride();
+        int ldc = c.getRowStride();
+        int k = a.getColumns();
+        for (int kk = 0; kk < k; kk += innerBlock) {
+            int kEnd = Math.min(kk + innerBlock, k);
+            for (int jj = colStart; jj < colEnd; jj += rowBlock) {
+                int jEnd = Math.min(jj + rowBlock, colEnd);
+                for (int i = rowStart; i < rowEnd; i++) {
+                    int aRow = a.getOffset() + i * lda + kk;
+                    int cRow = c.getOffset() + i * ldc;
+                    for (int j = jj; j < jEnd; j++) {
+                        cData[cRow + j] += dot(aData, aRow, bData, b.getOffset() + j * ldb + kk, kEnd - kk);
+                    }
+                }
+            }
+        }
+    }
+
+    private static void transposeMultiplyRange(FloatMatrix a, FloatMatrix b, FloatMatrix c,
+                                               int rowStart, int rowEnd, int colStart, int colEnd) {
+        float[] aData = a.getFloatData();
+        float[] bData = b.getFloatData();
+        float[] cData = c.getFloatData();
+        int lda = a.getRowStride();
+        int ldb = b.getRowStride();
+        int ldc = c.getRowStride();
+        int k = a.getRows();
+        for (int jj = colStart; jj < colEnd; jj += columnBlock) {
+            int jEnd = Math.min(jj + columnBlock, colEnd);
+            for (int ii = rowStart; ii < rowEnd; ii += rowBlock) {
+                int iEnd = Math.min(ii + rowBlock, rowEnd);
+                for (int p = 0; p < k; p++) {
+                    int aRow = a.getOffset() + p * lda;
+                    int bRow = b.getOffset() + p * ldb + jj;
+                    for (int i = ii; i < iEnd; i++) {
+                        float scalar = aData[aRow + i];
+                        if (scalar != 0) {
+                            axpy(scalar, bData, bRow, cData, c.getOffset() + i * ldc + jj, jEnd - jj);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static void axpy(float alpha, float[] x, int xFrom, float[] y, int yFrom, int length) {
+        int j = 0;
+        for (; j + 3 < length; j += 4) {
+            y[yFrom + j] += alpha * x[xFrom + j];
+            y[yFrom + j + 1] += alpha * x[xFrom + j + 1];
+            y[yFrom + j + 2] += alpha * x[xFrom + j + 2];
+            y[yFrom + j + 3] += alpha * x[xFrom + j + 3];
+        }
+        for (; j < length; j++) {
+            y[yFrom + j] += alpha * x[xFrom + j];
+        }
+    }
+
+    private static float dot(float[] x, int xFrom, float[] y, int yFrom, int length) {
+        float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int j = 0;
+        for (; j + 3 < length; j += 4) {
+            s0 += x[xFrom + j] * y[yFrom + j];
+            s1 += x[xFrom + j + 1] * y[yFrom + j + 1];
+            s2 += x[xFrom + j + 2] * y[yFrom + j + 2];
+            s3 += x[xFrom + j + 3] * y[yFrom + j + 3];
+        }
+        for (; j < length; j++) {
+            s0 += x[xFrom + j] * y[yFrom + j];
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+}
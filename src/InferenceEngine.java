@@ -0,0 +1,134 @@
+/**
+ * Predicts drawings one at a time, as Play submits them, without allocating.
+ * It does what NeuralNetworkNum.predict does, preprocessing the drawing and
+ * running it through the network, but into scratch buffers it owns and keeps.
+ * The rasterizer's buffers only grow, so once the engine has seen its
+ * largest drawing a prediction allocates nothing at all.
+ * An engine is not safe to use from more than one thread at once, each thread
+ * can have its own from NeuralNetworkNum.newInferenceEngine.
+ */
+
+import java.awt.*;
+import java.util.List;
+
+public final class InferenceEngine {
+
+    // theta1 and theta2 are the network's weights, which are copied if they
+    // aren't double precision. They must not change while the engine is used.
+    InferenceEngine(Matrix theta1, Matrix theta2, double rejectionMargin) {
+        this.theta1 = compactDouble(theta1);
+        this.theta2 = compactDouble(theta2);
+        this.rejectionMargin = rejectionMargin;
+        kernels = MatrixKernels.get();
+        int edgeLength = (int) Math.sqrt(theta1.getColumns() - 1);
+        if (edgeLength * edgeLength != theta1.getColumns() - 1) {
+            throw new IllegalArgumentException("Network doesn't take square drawings: " + (theta1.getColumns() - 1) + " inputs");
+        }
+        rasterizer = new StrokeRasterizer();
+        inputs = new double[theta1.getColumns()];
+        inputs[0] = 1;
+        pixels = new Matrix(inputs, 1, edgeLength, edgeLength, edgeLength, 1);
+        if (edgeLength != StrokeRasterizer.gridSize) {
+            features = new Matrix(StrokeRasterizer.gridSize, StrokeRasterizer.gridSize);
+            downsampler = new Downsampler(edgeLength, edgeLength);
+        } else {
+            features = null;
+            downsampler = null;
+        }
+        hidden = new double[theta1.getRows() + 1];
+        hidden[0] = 1;
+        output = new double[theta2.getRows()];
+    }
+
+    // The label of a drawing, from the same preprocessing and network as
+    // NeuralNetworkNum.predict. The probabilities behind it can then be read
+    // with getProbability and getMargin until the next drawing.
+    public int predict(List<Point> drawing) {
+        preprocess(drawing);
+        forward();
+        int first = 0;
+        int second = -1;
+        for (int j = 1; j < output.length; j++) {
+            if (output[j] > output[first]) {
+                second = first;
+                first = j;
+            } else if (second < 0 || output[j] > output[second]) {
+                second = j;
+            }
+        }
+        margin = output[first] - (second < 0 ? 0 : output[second]);
+        label = first == 10 ? 0 : first;
+        return label;
+    }
+
+    // As predict, giving the whole Prediction. Only the Prediction is allocated.
+    public Prediction classify(List<Point> drawing) {
+        predict(drawing);
+        return new Prediction(label, output.clone(), rejectionMargin);
+    }
+
+    // The probability the network gave the last drawing having label.
+    public double getProbability(int label) {
+        return output[label];
+    }
+
+    // How much more probable the last label predicted was than the next most probable.
+    public double getMargin() {
+        return margin;
+    }
+
+    // Whether the last prediction was too close to call, see Prediction.isRejected.
+    public boolean isRejected() {
+        return margin < rejectionMargin;
+    }
+
+    // Rasterises the drawing straight into the network's inputs, after their bias,
+    // or for a network with smaller inputs rasterises then scales it down into them.
+    private void preprocess(List<Point> drawing) {
+        if (downsampler == null) {
+            rasterizer.rasterise(drawing, pixels);
+        } else {
+            downsampler.downsampleInto(rasterizer.rasterise(drawing, features), pixels);
+        }
+    }
+
+    // Runs the inputs through the network into output.
+    // Columns of 1 are prepended to take into account bias, inputs and hidden
+    // hold theirs in element 0.
+    private void forward() {
+        double[] theta1Data = theta1.getData();
+        for (int h = 0; h < theta1.getRows(); h++) {
+            hidden[h + 1] = kernels.dot(theta1Data, theta1.getOffset() + h * theta1.getRowStride(), inputs, 0, inputs.length);
+        }
+        kernels.sigmoid(hidden, 1, hidden, 1, hidden.length - 1);
+        double[] theta2Data = theta2.getData();
+        for (int k = 0; k < output.length; k++) {
+            output[k] = kernels.dot(theta2Data, theta2.getOffset() + k * theta2.getRowStride(), hidden, 0, hidden.length);
+        }
+        kernels.sigmoid(output, 0, output, 0, output.length);
+    }
+
+    // The kernels read weights as double precision with contiguous rows.
+    private static Matrix compactDouble(Matrix weights) {
+        weights = weights.toPrecision(Precision.DOUBLE);
+        return weights.getColumnStride() == 1 ? weights : weights.compactCopy();
+    }
+
+    private final Matrix theta1;
+    private final Matrix theta2;
+    private final double rejectionMargin;
+    private final MatrixKernels kernels;
+    // Scratch buffers, the rasterizer's and the network's layers.
+    // pixels is a view of inputs after its bias.
+    private final StrokeRasterizer rasterizer;
+    // Only for networks that don't take gridSize*gridSize inputs.
+    private final Matrix features;
+    private final Downsampler downsampler;
+    private final double[] inputs;
+    private final Matrix pixels;
+    private final double[] hidden;
+    private final double[] output;
+    // Of the last drawing predicted.
+    private int label;
+    private double margin;
+}
@@ -3,28 +3,29 @@
  * useful matrix functions along with some other specialised
  * functions for selecting columns, collapsing matrices and
  * emulating writing.
+ * Elements are stored in a single flat array along with an offset and a
+ * stride for rows and columns. This lets transposes, single columns,
+ * runs of columns and runs of rows be taken as views which share the
+ * original array rather than copies of it. Writing to a view writes
+ * to the matrix it was taken from.
  */
 
 import java.awt.*;
 import java.util.ArrayList;
-import java.util.Random;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 public class Matrix {
 
-    private static final String hadamardProduct = "hadamardProduct";
-    private static final String elementwiseDivision = "elementwiseDivision";
-    private static final String elementwiseLog = "elementwiseLog";
-    private static final String matrixAddition = "elementwiseAddition";
-    private static final String matrixMultiplication = "matrixMultiplication";
-    private static final String scalarAddition = "scalarAddition";
-    private static final String scalarMultiplication = "scalarMultiplication";
-    private static final String nMinusMatrix = "nMinusMatrix";
     private static final int newEdgeLength = 50;
     private static final int maxDrawingEmulationRadius = 5;
+    private static final double sigma = 1.0;
 
     // Sets matrix to null unless a 2d array is passed in.
+    // The array is copied into the matrix's own flat storage.
     public Matrix(double[][] arrayForm) {
-        matrixInternal = null;
+        data = new double[0];
         rows = 0;
         columns = 0;
         if (arrayForm != null) {
@@ -32,39 +33,84 @@ public class Matrix {
         }
     }
 
+    // Creates a rows*columns matrix of zeros.
+    public Matrix(int rows, int columns) {
+        this(new double[rows * columns], rows, columns);
+    }
+
+    // Wraps a flat array holding a rows*columns matrix one row after another.
+    // The array is not copied, changes to either are seen by both.
+    public Matrix(double[] rowMajor, int rows, int columns) {
+        this(rowMajor, 0, rows, columns, columns, 1);
+    }
+
+    // A view over part of a flat array, element (i, j) is at offset + i * rowStride + j * colStride.
+    // Subclasses with their own storage pass a null array.
+    Matrix(double[] data, int offset, int rows, int columns, int rowStride, int colStride) {
+        this.data = data;
+        this.offset = offset;
+        this.rows = rows;
+        this.columns = columns;
+        this.rowStride = rowStride;
+        this.colStride = colStride;
+    }
+
+    // A view over this matrix's storage with a different offset, size or strides.
+    Matrix view(int viewOffset, int nRows, int nColumns, int viewRowStride, int viewColStride) {
+        return new Matrix(data, viewOffset, nRows, nColumns, viewRowStride, viewColStride);
+    }
+
+    // A new matrix of zeros with the same precision as this one.
+    Matrix like(int nRows, int nColumns) {
+        return new Matrix(nRows, nColumns);
+    }
+
+    // The precision elements are stored in.
+    public Precision getPrecision() {
+        return Precision.DOUBLE;
+    }
+
+    // Returns this matrix if it is already stored in the given precision,
+    // otherwise a copy of it that is.
+    public Matrix toPrecision(Precision precision) {
+        if (precision == getPrecision()) return this;
+        Matrix result = precision == Precision.FLOAT ?
+                new FloatMatrix(rows, columns) : new Matrix(rows, columns);
+        return copyInto(result);
+    }
+
     // The user's input drawing is too clean, just a single path of 255s.
     // There is not enough variety in inputs to distinguish between close classes
     // This function adds some more weight to each matrix.
     // This function normally distributes points around a point within a random radius.
     public void emulateWriting() {
+        requireDoublePrecision("emulateWriting");
+        GaussianKernel kernel = GaussianKernel.get(maxDrawingEmulationRadius, sigma);
         for (int i = 0; i < rows; i++) {
             for (int j = 0; j < columns; j++) {
-                if (matrixInternal[i][j] == 255) {
-                    drawAroundPoint(i, j);
+                if (data[index(i, j)] == 255) {
+                    drawAroundPoint(i, j, kernel);
                 }
             }
         }
     }
 
     // Reorganises a matrix so that rows are arranged end to end.
+    // The result has the same precision as this matrix.
     public Matrix matrixToRowVector() {
-        Matrix result = new Matrix(new double[1][rows * columns]);
-        int k = 0;
-        for (int i = 0; i < rows; i++) {
-            for (int j = 0; j < columns; j++) {
-                result.setObjectAtPoint(0, k++, matrixInternal[i][j]);
-            }
-        }
+        Matrix result = like(1, rows * columns);
+        // Copied through a view of the result with this matrix's shape.
+        copyInto(result.view(0, rows, columns, columns, 1));
         return result;
     }
 
     // Turns a single row vector into a matrix.
     public Matrix rowVectorToMatrix(int row) {
-        Matrix result = new Matrix(new double[(int)Math.sqrt(columns)][(int)Math.sqrt(columns)]);
+        Matrix result = like((int)Math.sqrt(columns), (int)Math.sqrt(columns));
         int k = 0;
         for (int i = 0; i < result.getRows(); i++) {
             for (int j = 0; j < result.getColumns(); j++) {
-                result.setObjectAtPoint(i, j, matrixInternal[row][k++]);
+                result.setObjectAtPoint(i, j, objectAtPoint(row, k++));
             }
         }
         return result;
@@ -76,28 +122,35 @@ public class Matrix {
     // Average all values within a block and set
     // that as the value for that element of the new matrix.
     public Matrix scaleDown() {
-        Matrix result = new Matrix(new double[newEdgeLength][newEdgeLength]);
+        return scaleDownInto(new Matrix(newEdgeLength, newEdgeLength));
+    }
+
+    // As scaleDown, overwriting the contents of destination.
+    public Matrix scaleDownInto(Matrix destination) {
+        requireDoublePrecision("scaleDown");
+        if (!destination.hasSize(newEdgeLength, newEdgeLength)) return null;
         int rowStepSize = rows / newEdgeLength;
         int columnStepSize = columns / newEdgeLength;
-        for (int i = 0; i < result.getRows(); i++) {
-            for (int j = 0; j < result.getColumns(); j++) {
-                result.setObjectAtPoint(i, j, result.objectAtPoint(i, j) +
-                        averageAroundPoint(i * rowStepSize, j * columnStepSize,
-                                rowStepSize, columnStepSize));
+        GaussianKernel kernel = GaussianKernel.get(Math.max(rowStepSize, columnStepSize) / 2, sigma);
+        for (int i = 0; i < destination.getRows(); i++) {
+            for (int j = 0; j < destination.getColumns(); j++) {
+                destination.setObjectAtPoint(i, j, averageAroundPoint(i * rowStepSize, j * columnStepSize,
+                        rowStepSize, columnStepSize, kernel));
             }
         }
-        return result;
+        return destination;
     }
 
     // Computes the average pixel values of a section of a matrix.
-    private double averageAroundPoint(int i, int j, int rowStepSize, int columnStepSize) {
+    // kernel must reach half a step either way.
+    private double averageAroundPoint(int i, int j, int rowStepSize, int columnStepSize, GaussianKernel kernel) {
         double result = 0;
         for (int k = i - rowStepSize / 2; k < i + rowStepSize / 2; k++) {
             if (k < rowPadding || k > rows - rowPadding) continue;
             for (int l = j - columnStepSize / 2; l < j + columnStepSize / 2; l++) {
                 if (l < colPadding || l > columns - colPadding) continue;
                 if (isInBoundsOfMatrix(k, l)) {
-                    result += normalDistribution(i, j, k, l) * matrixInternal[k][l] * rowStepSize * columnStepSize;
+                    result += kernel.weight(k - i, l - j) * data[index(k, l)] * rowStepSize * columnStepSize;
                 }
             }
         }
@@ -108,49 +161,39 @@ public class Matrix {
         return i >= 0 && i < rows && j >= 0 && j < columns;
     }
 
+    // The drawing functions work on the double array directly, a matrix in any
+    // other precision has to be converted with toPrecision first.
+    private void requireDoublePrecision(String operation) {
+        if (getPrecision() != Precision.DOUBLE) {
+            throw new UnsupportedOperationException(operation + " needs a double precision matrix, not " +
+                    getPrecision());
+        }
+    }
+
     // draws around a point while dropping off with the normal distribution.
     // if the point to be drawn to is not an original part of the shape,
     // its value is averaged with the result of the normal distribution.
-    private void drawAroundPoint(int i, int j) {
-        rGen = new Random();
-        int radius = maxDrawingEmulationRadius;
+    private void drawAroundPoint(int i, int j, GaussianKernel kernel) {
+        int radius = kernel.getRadius();
 
         for (int k = i - radius; k < i + radius; k++) {
             for (int l = j - radius; l < j + radius; l++) {
                 if (isInBoundsOfMatrix(k, l)) {
-                    if (matrixInternal[k][l] != 255) {
-                        matrixInternal[k][l] += normalDistribution(i, j, k, l)
-                                + 1.0 / distanceBetweenPoints(i, j, k, l);
+                    if (data[index(k, l)] != 255) {
+                        data[index(k, l)] += kernel.brushWeight(k - i, l - j);
                     }
                 }
             }
         }
     }
 
-    // euclidean distance between two points.
-    private double distanceBetweenPoints(int p1x, int p1y, int p2x, int p2y) {
-        double xDiff = p2x - p1x;
-        double yDiff = p2y - p1y;
-        double distance = Math.pow(xDiff, 2.0) + Math.pow(yDiff, 2.0);
-        return Math.sqrt(distance);
-    }
-
-    // Normal distribution formula.
-    private double normalDistribution(int p1x, int p1y, int p2x, int p2y) {
-        double distance = distanceBetweenPoints(p2x, p2y, p1x, p1y);
-        double sigma = 1.0;
-        double leftSide = 1.0 / (sigma * 2.0 * Math.sqrt(2.0 * Math.PI));
-        double rightSide = -distance / (2.0 * Math.pow(sigma, 2.0));
-        return leftSide * Math.exp(rightSide);
-    }
-
     // Prints out a matrix for debugging on the command line.
     // Maybe cast it to an int for uncluttered viewing
     public void displayMatrix() {
         for (int i = 0; i < rows; i++) {
             for (int j = 0; j < columns; j++) {
-                if (matrixInternal[i][j] != 0) {
-                    System.out.printf("%.2f ", matrixInternal[i][j]);
+                if (objectAtPoint(i, j) != 0) {
+                    System.out.printf("%.2f ", objectAtPoint(i, j));
                 } else {
                     System.out.printf("   ");
                 }
@@ -162,36 +205,46 @@ public class Matrix {
     // Displays the nth row of a matrix
     public void displayRowN(int n) {
         for (int j = 0; j < columns; j++) {
-            System.out.printf("%f\n", matrixInternal[n][j]);
+            System.out.printf("%f\n", objectAtPoint(n, j));
         }
     }
 
-    // Creates a matrix out of a 2d array.
+    // Copies a 2d array into a flat array, one row after another.
     private void initMatrix(double[][] arrayForm) {
         rows = arrayForm.length;
         columns = arrayForm[0].length;
-        matrixInternal = arrayForm;
+        rowStride = columns;
+        colStride = 1;
+        data = new double[rows * columns];
+        for (int i = 0; i < rows; i++) {
+            System.arraycopy(arrayForm[i], 0, data, i * columns, columns);
+        }
+    }
+
+    // Position of element (row, col) in the flat array.
+    int index(int row, int col) {
+        return offset + row * rowStride + col * colStride;
     }
 
     // Gets the element at a certain index of a matrix.
     public double objectAtPoint(int row, int col) {
-        if (row < 0 || row > rows || col < 0 || col > columns) {
-            System.err.println("Index outside matrix boundaries: " + row + ", " + col);
+        if (row < 0 || row >= rows || col < 0 || col >= columns) {
+            throw new IndexOutOfBoundsException("Index outside " + getRows() + "*" + getColumns() + " matrix: " + row + ", " + col);
         }
-        return this.matrixInternal[row][col];
+        return data[index(row, col)];
     }
 
     // Sets the element at a certain index of a matrix.
     public void setObjectAtPoint(int row, int col, double value) {
-        if (row < 0 || row > rows || col < 0 || col > columns) {
-            System.err.println("Index outside matrix boundaries: " + row + ", " + col);
+        if (row < 0 || row >= rows || col < 0 || col >= columns) {
+            throw new IndexOutOfBoundsException("Index outside " + getRows() + "*" + getColumns() + " matrix: " + row + ", " + col);
         }
-        matrixInternal[row][col] = value;
+        data[index(row, col)] = value;
     }
 
     // Returns I, the identity matrix with 1s along the diagonal.
     public Matrix identityMatrix(int nRows, int nColumns) {
-        Matrix result = new Matrix(new double[nRows][nColumns]);
+        Matrix result = new Matrix(nRows, nColumns);
         for (int i = 0; i < result.getRows(); i++) {
             for (int j = 0; j < result.getColumns(); j++) {
                 if (i == j) {
@@ -208,91 +261,129 @@ public class Matrix {
             System.err.println("Second matrix rows (" + snd.getRows() + ") not equal to first matrix rows (" + rows + ")");
             return null;
         }
-        Matrix result = new Matrix(new double[rows][columns + snd.getColumns()]);
-        for (int i = 0; i < result.getRows(); i++) {
-            for (int j = 0; j < result.getColumns(); j++) {
-                if (j < columns) {
-                    result.setObjectAtPoint(i, j, matrixInternal[i][j]);
-                } else {
-                    result.setObjectAtPoint(i, j, snd.objectAtPoint(i, j - columns));
-                }
-            }
+        return stickToMatrixInto(snd, like(rows, columns + snd.getColumns()));
+    }
+
+    // Writes this matrix followed by snd's columns into destination.
+    public Matrix stickToMatrixInto(Matrix snd, Matrix destination) {
+        if (snd.getRows() != rows) {
+            System.err.println("Second matrix rows (" + snd.getRows() + ") not equal to first matrix rows (" + rows + ")");
+            return null;
         }
-        return result;
+        if (!destination.hasSize(rows, columns + snd.getColumns())) return null;
+        copyInto(destination.columnRange(0, columns));
+        snd.copyInto(destination.columnRange(columns, destination.getColumns()));
+        return destination;
     }
 
     // Returns a single specified column of a greater matrix.
+    // The column is a view sharing this matrix's storage.
     public Matrix extractColumn(int index) {
-        if (index < 0 || index > columns) {
+        if (index < 0 || index >= columns) {
             System.err.println("Specified index (" + index + ") is greater than num columns (" + columns + ")");
             return null;
         }
-        Matrix result = new Matrix(new double[rows][1]);
-        for (int i = 0; i < result.getRows(); i++) {
-            for (int j = 0; j < result.getColumns(); j++) {
-                if (j == index) {
-                    result.setObjectAtPoint(i, j, matrixInternal[i][j]);
-                }
-            }
+        return columnRange(index, index + 1);
+    }
+
+    // Returns columns [from, to) of this matrix as a view sharing its storage.
+    public Matrix columnRange(int from, int to) {
+        if (from < 0 || to > columns || from > to) {
+            System.err.println("Column range [" + from + ", " + to + ") outside num columns (" + columns + ")");
+            return null;
         }
-        return result;
+        return view(offset + from * colStride, rows, to - from, rowStride, colStride);
+    }
+
+    // Returns rows [from, to) of this matrix as a view sharing its storage.
+    public Matrix rowRange(int from, int to) {
+        if (from < 0 || to > rows || from > to) {
+            System.err.println("Row range [" + from + ", " + to + ") outside num rows (" + rows + ")");
+            return null;
+        }
+        return view(offset + from * rowStride, to - from, columns, rowStride, colStride);
+    }
+
+    // Copies rows rowIndices[from], rowIndices[from + 1], ... of this matrix
+    // into consecutive rows of destination, until destination is full.
+    public Matrix gatherRowsInto(int[] rowIndices, int from, Matrix destination) {
+        if (destination.getColumns() != columns || from + destination.getRows() > rowIndices.length) {
+            System.out.println("Matrix dimensions incompatible: " + destination.getColumns() + " != " + columns +
+                    " || " + (from + destination.getRows()) + " > " + rowIndices.length);
+            return null;
+        }
+        for (int i = 0; i < destination.getRows(); i++) {
+            int row = rowIndices[from + i];
+            rowRange(row, row + 1).copyInto(destination.rowRange(i, i + 1));
+        }
+        return destination;
     }
 
     // Removes the Nth column from a matrix.
+    // Removing the first or last column gives a view sharing this matrix's storage,
+    // any other column has to be copied around.
     public Matrix cutColumnN(int n) {
-        if (n < 0 || n > columns) {
+        if (n < 0 || n >= columns) {
             System.err.println("Specified index (" + n + ") is greater than num columns (" + columns + ")");
             return null;
         }
-        Matrix result = new Matrix(new double[rows][columns - 1]);
-        for (int i = 0; i < result.getRows(); i++) {
-            for (int j = 0; j < result.getColumns(); j++) {
-                if (j < n) {
-                    result.setObjectAtPoint(i, j, matrixInternal[i][j]);
-                } else {
-                    result.setObjectAtPoint(i, j, matrixInternal[i][j + 1]);
-                }
-            }
+        if (n == 0) return columnRange(1, columns);
+        if (n == columns - 1) return columnRange(0, columns - 1);
+        return cutColumnNInto(n, like(rows, columns - 1));
+    }
+
+    // Writes every column except the Nth into destination.
+    public Matrix cutColumnNInto(int n, Matrix destination) {
+        if (n < 0 || n >= columns) {
+            System.err.println("Specified index (" + n + ") is greater than num columns (" + columns + ")");
+            return null;
         }
-        return result;
+        if (!destination.hasSize(rows, columns - 1)) return null;
+        columnRange(0, n).copyInto(destination.columnRange(0, n));
+        columnRange(n + 1, columns).copyInto(destination.columnRange(n, columns - 1));
+        return destination;
     }
 
     // Prepends a column of this.getRows() elements of the specified value to the matrix.
     public Matrix prependColumnOfValue(int value) {
-        Matrix result = new Matrix(new double[rows][columns + 1]);
-        for (int i = 0; i < result.getRows(); i++) {
-            for (int j = 0; j < result.getColumns(); j++) {
-                if (j == 0) {
-                    result.setObjectAtPoint(i, j, value);
-                } else {
-                    result.setObjectAtPoint(i, j, matrixInternal[i][j - 1]);
-                }
-            }
-        }
-        return result;
+        return prependColumnOfValueInto(value, like(rows, columns + 1));
+    }
+
+    // Writes a column of the specified value followed by this matrix into destination.
+    public Matrix prependColumnOfValueInto(double value, Matrix destination) {
+        if (!destination.hasSize(rows, columns + 1)) return null;
+        destination.columnRange(0, 1).fill(value);
+        copyInto(destination.columnRange(1, columns + 1));
+        return destination;
     }
 
     // Creates a row vector where each element is the sum
     // of each column in the original matrix.
     public Matrix sigmaSumColumnsToRowVector() {
-        Matrix result = new Matrix(new double[1][columns]);
+        Matrix result = new Matrix(1, columns);
         for (int i = 0; i < rows; i++) {
-            for (int j = 0; j < columns; j++) {
-                result.setObjectAtPoint(0, j, result.objectAtPoint(0, j) + matrixInternal[i][j]);
+            int p = index(i, 0);
+            if (colStride == 1) {
+                MatrixKernels.get().axpy(1, data, p, result.data, 0, columns);
+            } else {
+                for (int j = 0; j < columns; j++, p += colStride) {
+                    result.data[j] += data[p];
+                }
             }
         }
         return result;
     }
 
     // Transposes a matrix, A'(i,j) == A(j,i).
+    // The transpose is a view sharing this matrix's storage with the strides swapped.
     public Matrix transpose() {
-        Matrix result = new Matrix(new double[columns][rows]);
-        for (int i = 0; i < result.getRows(); i++) {
-            for (int j = 0; j < result.getColumns(); j++) {
-                result.setObjectAtPoint(i, j, matrixInternal[j][i]);
-            }
-        }
-        return result;
+        return view(offset, columns, rows, colStride, rowStride);
+    }
+
+    // Writes the transpose of this matrix into destination.
+    public Matrix transposeInto(Matrix destination) {
+        if (!destination.hasSize(columns, rows)) return null;
+        return transpose().copyInto(destination);
     }
 
     // Performs elementwise multiplication rather than full matrix multiplication.
@@ -300,7 +391,7 @@ public class Matrix {
         if (!this.hasEqualSizeTo(sndMatrix)) {
             return null;
         }
-        return matrixElementWiseFunction(sndMatrix, hadamardProduct, 0);
+        return expression().times(MatrixExpression.of(sndMatrix)).evaluateInto(like(rows, columns));
     }
 
     // Performs elementwise division
@@ -308,13 +399,13 @@ public class Matrix {
         if (!this.hasEqualSizeTo(sndMatrix)) {
             return null;
         }
-        return matrixElementWiseFunction(sndMatrix, elementwiseDivision, 0);
+        return expression().dividedBy(MatrixExpression.of(sndMatrix)).evaluateInto(like(rows, columns));
 
     }
 
     // Computes the log of every element of the input matrix.
     public Matrix elementwiseLog() {
-        return matrixElementWiseFunction(null, elementwiseLog, 0);
+        return expression().log().evaluateInto(like(rows, columns));
     }
 
     // Adds the (i,j)th elements of two matrices together
@@ -322,115 +413,349 @@ public class Matrix {
         if (!this.hasEqualSizeTo(sndMatrix)) {
             return null;
         }
-        return matrixElementWiseFunction(sndMatrix, matrixAddition, 0);
+        return expression().plus(MatrixExpression.of(sndMatrix)).evaluateInto(like(rows, columns));
     }
 
     // Regular matrix multiplication
     public Matrix matrixMultiplication(Matrix sndMatrix) {
         if (this.columns != sndMatrix.getRows()) {
-            System.out.println("Incompatable matrix size: " + this.rows + "*" + this.columns +
-                    " x " + sndMatrix.getRows() + "*" + sndMatrix.getColumns());
+            printIncompatible("x", sndMatrix);
             return null;
         }
-        Matrix result = new Matrix(new double[rows][sndMatrix.getColumns()]);
-        for (int i = 0; i < result.getRows(); i++) {
-            for (int j = 0; j < result.getColumns(); j++) {
-                for (int k = 0; k < columns; k++) {
-                    try {
-                        double newValue = result.objectAtPoint(i, j) + matrixInternal[i][k] * sndMatrix.objectAtPoint(k, j);
-                        result.setObjectAtPoint(i, j, newValue);
-                    } catch (ArrayIndexOutOfBoundsException e) {
-                        e.printStackTrace();
-                        printSimp("Failed with this: " + rows + "," + columns + " snd: " +
-                                sndMatrix.getRows() + "," + sndMatrix.getColumns() + " failIndices this: " + i + "," + k +
-                                " snd: " + k + "," + j);
-                        System.exit(1);
-                    }
-                }
+        return multiplyInto(sndMatrix, like(rows, sndMatrix.getColumns()));
+    }
+
+    // Computes this * sndMatrix into destination, overwriting its contents.
+    public Matrix multiplyInto(Matrix sndMatrix, Matrix destination) {
+        if (this.columns != sndMatrix.getRows()) {
+            printIncompatible("x", sndMatrix);
+            return null;
+        }
+        if (!destination.hasSize(rows, sndMatrix.getColumns())) return null;
+        return multiply(this, false, sndMatrix, false, destination);
+    }
+
+    // Sets the pool that large products are split across.
+    // Passing null computes every product on the calling thread.
+    // The result of a product is the same whichever pool it is computed on.
+    public static void setMultiplicationPool(ForkJoinPool pool) {
+        GemmKernel.setPool(pool);
+    }
+
+    // Sets how many multiply-adds a product needs before it is computed in parallel.
+    public static void setParallelThreshold(long multiplyAdds) {
+        GemmKernel.setParallelThreshold(multiplyAdds);
+    }
+
+    // Computes this * sndMatrix' without building the transpose of sndMatrix.
+    public Matrix multiplyByTranspose(Matrix sndMatrix) {
+        if (this.columns != sndMatrix.getColumns()) {
+            printIncompatible("x'", sndMatrix);
+            return null;
+        }
+        return multiplyByTransposeInto(sndMatrix, like(rows, sndMatrix.getRows()));
+    }
+
+    // Computes this * sndMatrix' into destination, overwriting its contents.
+    public Matrix multiplyByTransposeInto(Matrix sndMatrix, Matrix destination) {
+        if (this.columns != sndMatrix.getColumns()) {
+            printIncompatible("x'", sndMatrix);
+            return null;
+        }
+        if (!destination.hasSize(rows, sndMatrix.getRows())) return null;
+        return multiply(this, false, sndMatrix, true, destination);
+    }
+
+    // Computes this' * sndMatrix without building the transpose of this.
+    public Matrix transposeMultiply(Matrix sndMatrix) {
+        if (this.rows != sndMatrix.getRows()) {
+            printIncompatible("'x", sndMatrix);
+            return null;
+        }
+        return transposeMultiplyInto(sndMatrix, like(columns, sndMatrix.getColumns()));
+    }
+
+    // Computes this' * sndMatrix into destination, overwriting its contents.
+    public Matrix transposeMultiplyInto(Matrix sndMatrix, Matrix destination) {
+        if (this.rows != sndMatrix.getRows()) {
+            printIncompatible("'x", sndMatrix);
+            return null;
+        }
+        if (!destination.hasSize(columns, sndMatrix.getColumns())) return null;
+        return multiply(this, true, sndMatrix, false, destination);
+    }
+
+    // Computes op(a) * op(b) into destination where op transposes when asked to.
+    // The kernels need contiguous rows, a transposed view has contiguous columns
+    // instead so it is handed over as the untransposed matrix with the flag flipped.
+    // Anything else, and products of two transposes, fall back to a compact copy.
+    // Operands are first brought to the destination's precision.
+    private static Matrix multiply(Matrix a, boolean transposeA, Matrix b, boolean transposeB, Matrix destination) {
+        a = a.toPrecision(destination.getPrecision());
+        b = b.toPrecision(destination.getPrecision());
+        if (a.colStride != 1) {
+            if (a.rowStride == 1) {
+                a = a.transpose();
+                transposeA = !transposeA;
+            } else {
+                a = a.compactCopy();
             }
         }
+        if (b.colStride != 1) {
+            if (b.rowStride == 1) {
+                b = b.transpose();
+                transposeB = !transposeB;
+            } else {
+                b = b.compactCopy();
+            }
+        }
+        if (transposeA && transposeB) {
+            a = a.transpose().compactCopy();
+            transposeA = false;
+        }
+        Matrix result = destination.colStride == 1 ? destination :
+                destination.like(destination.getRows(), destination.getColumns());
+        result.fill(0);
+        if (transposeA) {
+            GemmKernel.transposeMultiply(a, b, result);
+        } else if (transposeB) {
+            GemmKernel.multiplyByTranspose(a, b, result);
+        } else {
+            GemmKernel.multiply(a, b, result);
+        }
+        if (result != destination) result.copyInto(destination);
+        return destination;
+    }
 
-        return result;
+    // Reports a pair of matrices whose sizes cannot be multiplied together.
+    private void printIncompatible(String operator, Matrix sndMatrix) {
+        printSimp("Incompatable matrix size: " + this.rows + "*" + this.columns +
+                " " + operator + " " + sndMatrix.getRows() + "*" + sndMatrix.getColumns());
     }
 
     // Scalar adds every element of the matrix
     public Matrix scalarAddition(double scalar) {
-        return matrixElementWiseFunction(null, scalarAddition, scalar);
+        return expression().plus(scalar).evaluateInto(like(rows, columns));
     }
 
     // Scalar multiplies every element of the matrix
     public Matrix scalarMultiplication(double scalar) {
-        return matrixElementWiseFunction(null, scalarMultiplication, scalar);
+        return expression().times(scalar).evaluateInto(like(rows, columns));
     }
 
     // Minuses the matrix value i,j from a scalar at each index.
     public Matrix nMinusMatrix(double scalar) {
-        return matrixElementWiseFunction(null, nMinusMatrix, scalar);
+        return expression().subtractedFrom(scalar).evaluateInto(like(rows, columns));
 
     }
 
-    // Checks that 2 matrices are the same size for elementwise operations.
-    private boolean hasEqualSizeTo(Matrix sndMatrix) {
-        if (this.rows != sndMatrix.getRows() || this.columns != sndMatrix.getColumns()) {
-            System.out.println("Matrix dimensions incompatible: " + this.rows + " != " +
-                    sndMatrix.getRows() + " || " + this.columns + " != " + sndMatrix.getColumns());
-            return false;
+    // Copies every element of this matrix into destination.
+    public Matrix copyInto(Matrix destination) {
+        if (!destination.hasSize(rows, columns)) return null;
+        if (destination.getPrecision() != Precision.DOUBLE) return copyElementsInto(destination);
+        for (int i = 0; i < rows; i++) {
+            int p = index(i, 0);
+            int q = destination.index(i, 0);
+            if (colStride == 1 && destination.colStride == 1) {
+                System.arraycopy(data, p, destination.data, q, columns);
+            } else {
+                for (int j = 0; j < columns; j++, p += colStride, q += destination.colStride) {
+                    destination.data[q] = data[p];
+                }
+            }
         }
-        return true;
+        return destination;
     }
 
-    // Shorthand printing function
-    private void printSimp(String str) {
-        System.out.println(str);
+    // Copies one element at a time, converting between precisions.
+    Matrix copyElementsInto(Matrix destination) {
+        for (int i = 0; i < rows; i++) {
+            for (int j = 0; j < columns; j++) {
+                destination.setObjectAtPoint(i, j, objectAtPoint(i, j));
+            }
+        }
+        return destination;
     }
 
-    // Performs specified matrix function.
-    private Matrix matrixElementWiseFunction(Matrix sndMatrix, String function, double scalar) {
-        double[][] resultArr = new double[rows][columns];
+    // Returns a copy of this matrix in its own flat storage with contiguous rows.
+    public Matrix compactCopy() {
+        return copyInto(like(rows, columns));
+    }
 
+    // Sets every element of the matrix to value.
+    public Matrix fill(double value) {
         for (int i = 0; i < rows; i++) {
-            for (int j = 0; j < columns; j++) {
-                if (function.equals(matrixAddition)) {
-                    resultArr[i][j] = resultArr[i][j] +
-                            matrixInternal[i][j] + sndMatrix.objectAtPoint(i, j);
+            int p = index(i, 0);
+            if (colStride == 1) {
+                Arrays.fill(data, p, p + columns, value);
+            } else {
+                for (int j = 0; j < columns; j++, p += colStride) {
+                    data[p] = value;
+                }
+            }
+        }
+        return this;
+    }
 
-                } else if (function.equals(hadamardProduct)) {
+    // The in place functions below modify this matrix rather than
+    // allocating a new one, and return it so calls can be chained.
 
-                    resultArr[i][j] = resultArr[i][j] +
-                            matrixInternal[i][j] * sndMatrix.objectAtPoint(i, j);
+    // this += sndMatrix
+    public Matrix addInPlace(Matrix sndMatrix) {
+        return addScaledInPlace(sndMatrix, 1);
+    }
 
-                } else if (function.equals(elementwiseDivision) &&
-                        matrixInternal[i][j] != 0 &&
-                        sndMatrix.objectAtPoint(i, j) != 0) {
+    // this -= sndMatrix
+    public Matrix subtractInPlace(Matrix sndMatrix) {
+        return addScaledInPlace(sndMatrix, -1);
+    }
 
-                    resultArr[i][j] = resultArr[i][j] +
-                            matrixInternal[i][j] / sndMatrix.objectAtPoint(i, j);
+    // this += scale * sndMatrix
+    public Matrix addScaledInPlace(Matrix sndMatrix, double scale) {
+        if (!this.hasEqualSizeTo(sndMatrix)) return null;
+        sndMatrix = sndMatrix.toPrecision(Precision.DOUBLE);
+        double[] snd = sndMatrix.data;
+        for (int i = 0; i < rows; i++) {
+            int p = index(i, 0);
+            int q = sndMatrix.index(i, 0);
+            if (colStride == 1 && sndMatrix.colStride == 1) {
+                MatrixKernels.get().axpy(scale, snd, q, data, p, columns);
+            } else {
+                for (int j = 0; j < columns; j++, p += colStride, q += sndMatrix.colStride) {
+                    data[p] += scale * snd[q];
+                }
+            }
+        }
+        return this;
+    }
+
+    // this = this .* sndMatrix
+    public Matrix hadamardInPlace(Matrix sndMatrix) {
+        if (!this.hasEqualSizeTo(sndMatrix)) return null;
+        sndMatrix = sndMatrix.toPrecision(Precision.DOUBLE);
+        double[] snd = sndMatrix.data;
+        for (int i = 0; i < rows; i++) {
+            int p = index(i, 0);
+            int q = sndMatrix.index(i, 0);
+            if (colStride == 1 && sndMatrix.colStride == 1) {
+                MatrixKernels.get().multiply(snd, q, data, p, columns);
+            } else {
+                for (int j = 0; j < columns; j++, p += colStride, q += sndMatrix.colStride) {
+                    data[p] *= snd[q];
+                }
+            }
+        }
+        return this;
+    }
 
-                } else if (function.equals(elementwiseLog) && matrixInternal[i][j] != 0) {
+    // this = scalar * this
+    public Matrix scaleInPlace(double scalar) {
+        for (int i = 0; i < rows; i++) {
+            int p = index(i, 0);
+            if (colStride == 1) {
+                MatrixKernels.get().scale(scalar, data, p, columns);
+            } else {
+                for (int j = 0; j < columns; j++, p += colStride) {
+                    data[p] *= scalar;
+                }
+            }
+        }
+        return this;
+    }
 
-                    resultArr[i][j] = Math.log(matrixInternal[i][j]);
+    // Writes 1 / (1 + e^-x) of every element into destination, which may be this matrix.
+    public Matrix sigmoidInto(Matrix destination) {
+        if (!destination.hasSize(rows, columns)) return null;
+        // The kernels work on double arrays, any other precision on either side is evaluated element by element.
+        if (colStride != 1 || destination.colStride != 1 || getPrecision() != Precision.DOUBLE ||
+                destination.getPrecision() != Precision.DOUBLE) {
+            return expression().sigmoid().evaluateInto(destination);
+        }
+        for (int i = 0; i < rows; i++) {
+            MatrixKernels.get().sigmoid(data, index(i, 0), destination.data, destination.index(i, 0), columns);
+        }
+        return destination;
+    }
 
-                } else if (function.equals(scalarAddition)) {
+    // this = this + scalar
+    public Matrix scalarAdditionInPlace(double scalar) {
+        for (int i = 0; i < rows; i++) {
+            int p = index(i, 0);
+            for (int j = 0; j < columns; j++, p += colStride) {
+                data[p] += scalar;
+            }
+        }
+        return this;
+    }
 
-                    resultArr[i][j] = matrixInternal[i][j] + scalar;
+    // this = scalar - this
+    public Matrix nMinusMatrixInPlace(double scalar) {
+        for (int i = 0; i < rows; i++) {
+            int p = index(i, 0);
+            for (int j = 0; j < columns; j++, p += colStride) {
+                data[p] = scalar - data[p];
+            }
+        }
+        return this;
+    }
 
-                } else if (function.equals(scalarMultiplication)) {
+    // Checks that a destination matrix has the size an operation will write.
+    boolean hasSize(int nRows, int nColumns) {
+        if (rows != nRows || columns != nColumns) {
+            System.out.println("Destination dimensions incompatible: " + rows + "*" + columns +
+                    " != " + nRows + "*" + nColumns);
+            return false;
+        }
+        return true;
+    }
 
-                    resultArr[i][j] = matrixInternal[i][j] * scalar;
+    // Checks that 2 matrices are the same size for elementwise operations.
+    boolean hasEqualSizeTo(Matrix sndMatrix) {
+        if (this.rows != sndMatrix.getRows() || this.columns != sndMatrix.getColumns()) {
+            System.out.println("Matrix dimensions incompatible: " + this.rows + " != " +
+                    sndMatrix.getRows() + " || " + this.columns + " != " + sndMatrix.getColumns());
+            return false;
+        }
+        return true;
+    }
 
-                } else if (function.equals(nMinusMatrix)) {
+    // Shorthand printing function
+    private void printSimp(String str) {
+        System.out.println(str);
+    }
 
-                    resultArr[i][j] = scalar - matrixInternal[i][j];
+    // Starts a lazily evaluated element-wise expression over this matrix.
+    public MatrixExpression expression() {
+        return MatrixExpression.of(this);
+    }
 
-                }
+    // Returns a copy of all matrix values as a 2d array.
+    public double[][] getMatrix() {
+        double[][] result = new double[rows][columns];
+        for (int i = 0; i < rows; i++) {
+            for (int j = 0; j < columns; j++) {
+                result[i][j] = data[index(i, j)];
             }
         }
-        return new Matrix(resultArr);
+        return result;
     }
 
-    // Returns all internal matrix values.
-    public double[][] getMatrix() {
-        return matrixInternal;
+    // The flat array backing this matrix, shared with any views of it.
+    // Element (i, j) is at getOffset() + i * getRowStride() + j * getColumnStride().
+    double[] getData() {
+        return data;
+    }
+
+    int getOffset() {
+        return offset;
+    }
+
+    int getRowStride() {
+        return rowStride;
+    }
+
+    int getColumnStride() {
+        return colStride;
     }
 
     public int getRows() {
@@ -441,56 +766,73 @@ public class Matrix {
         return columns;
     }
 
-    // From an image's bounding box, computes how many rows and columns a matrix should have.
-    private void computeRC(Point[] boundingBox) {
-        columns = boundingBox[1].x - boundingBox[0].x + 1;
-        rows = boundingBox[0].y - boundingBox[1].y + 1;
-    }
-
     // Given a String list of elements of a matrix arranged (i_0, j_0), (i_0, j_1), ... ,,(i_m, j_n)
     // Turns it into an matrix of size m*n.
     public Matrix makeMatrixFromStringArrayList(ArrayList<String> allLines) {
-        double[][] result = new double[allLines.size()][allLines.get(0).split(" ").length];
+        Matrix result = new Matrix(allLines.size(), allLines.get(0).split(" ").length);
 
-        for (int i = 0; i < result.length; i++) {
+        for (int i = 0; i < result.getRows(); i++) {
             String[] currentRow = allLines.get(i).split(" ");
-            for (int j = 0; j < result[0].length; j++) {
-                result[i][j] = (Double.parseDouble(currentRow[j]));
+            for (int j = 0; j < result.getColumns(); j++) {
+                result.data[result.index(i, j)] = (Double.parseDouble(currentRow[j]));
             }
         }
-        return new Matrix(result);
+        return result;
     }
 
     // Given an arrayList of cartesian coordinates, builds a matrix from those points
     // By first scaling them so that they are docked to the origin.
     // Row and Col padding are added to give matrices a border of zeros.
     public void makeMatrixFromPointsArrayList(ArrayList<Point> numberArray, Point[] boundingBox) {
-        computeRC(boundingBox);
+        requireDoublePrecision("makeMatrixFromPointsArrayList");
+        // Never drawn over storage this matrix might share with another.
+        data = new double[0];
+        drawPointsInBox(numberArray, boundingBox[0].x, boundingBox[1].y, boundingBox[1].x, boundingBox[0].y);
+    }
+
+    // As makeMatrixFromPointsArrayList, with the bounding box given by its edges.
+    // The matrix's storage is reused when it is big enough, so a matrix drawn
+    // into again and again stops allocating once it has seen the largest drawing.
+    // It must not be a view of another matrix.
+    void drawPointsInBox(List<Point> numberArray, int minX, int minY, int maxX, int maxY) {
+        // The matrix is sized to the bounding box plus a border of zeros.
+        columns = maxX - minX + 1;
+        rows = maxY - minY + 1;
         rowPadding = 6 * rows / newEdgeLength;
         colPadding = 6 * columns / newEdgeLength;
         rows += 2 * rowPadding;
         columns += 2 * colPadding;
-        matrixInternal = new double[rows][columns];
+        if (data.length < rows * columns) {
+            data = new double[rows * columns];
+        } else {
+            Arrays.fill(data, 0, rows * columns, 0);
+        }
+        offset = 0;
+        rowStride = columns;
+        colStride = 1;
         int fillOutRadius = 10;
 
-        for (Point elem : numberArray) {
-            int xPos = rowPadding + elem.y - boundingBox[1].y;
-            int yPos = colPadding + elem.x - boundingBox[0].x;
-            matrixInternal[xPos][yPos] = 255;
+        for (int p = 0; p < numberArray.size(); p++) {
+            Point elem = numberArray.get(p);
+            int xPos = rowPadding + elem.y - minY;
+            int yPos = colPadding + elem.x - minX;
+            data[index(xPos, yPos)] = 255;
 
             for (int i = xPos - fillOutRadius / 2; i < xPos + fillOutRadius / 2; i++) {
                 for (int j = yPos - fillOutRadius / 2; j < yPos + fillOutRadius / 2; j++) {
-                    if (isInBoundsOfMatrix(i, j)) matrixInternal[i][j] = 255;
+                    if (isInBoundsOfMatrix(i, j)) data[index(i, j)] = 255;
                 }
             }
         }
     }
 
 
-    private double[][] matrixInternal;
+    private double[] data;
+    private int offset;
+    private int rowStride;
+    private int colStride;
     private int rows;
     private int columns;
     private int rowPadding;
     private int colPadding;
-    private Random rGen;
 }
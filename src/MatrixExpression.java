@@ -0,0 +1,290 @@
+/**
+ * A lazily evaluated element-wise expression over matrices.
+ * Building an expression only records the operations as a small tree,
+ * nothing is computed until it is evaluated or reduced.
+ * Evaluation then walks every element once, computing the whole tree
+ * for that element, so chains of operations never allocate
+ * intermediate matrices.
+ * eg: -(Y .* log(a3)) - (1 - Y) .* log(1 - a3) summed into a scalar
+ * is a single pass over Y and a3.
+ */
+public abstract class MatrixExpression {
+
+    // Unary operations.
+    private static final int negate = 0;
+    private static final int log = 1;
+    private static final int square = 2;
+    private static final int sigmoid = 3;
+    private static final int sqrt = 4;
+
+    // Binary operations.
+    private static final int add = 0;
+    private static final int subtract = 1;
+    private static final int multiply = 2;
+    private static final int divide = 3;
+
+    // A scalar has no size of its own and is broadcast to every element.
+    private static final int broadcast = -1;
+
+    private MatrixExpression(int rows, int columns) {
+        this.rows = rows;
+        this.columns = columns;
+    }
+
+    // The value of the expression at element (i, j).
+    abstract double valueAt(int i, int j);
+
+    // Wraps a matrix so it can be used in an expression.
+    public static MatrixExpression of(Matrix matrix) {
+        if (matrix.getPrecision() == Precision.FLOAT) return new FloatLeaf((FloatMatrix) matrix);
+        return new Leaf(matrix);
+    }
+
+    // A scalar that takes the same value at every element.
+    public static MatrixExpression constant(double value) {
+        return new Constant(value);
+    }
+
+    public MatrixExpression plus(MatrixExpression snd) {
+        return new Binary(add, this, snd);
+    }
+
+    public MatrixExpression plus(double scalar) {
+        return plus(constant(scalar));
+    }
+
+    public MatrixExpression minus(MatrixExpression snd) {
+        return new Binary(subtract, this, snd);
+    }
+
+    // scalar - this, at each element.
+    public MatrixExpression subtractedFrom(double scalar) {
+        return constant(scalar).minus(this);
+    }
+
+    // Elementwise (hadamard) product.
+    public MatrixExpression times(MatrixExpression snd) {
+        return new Binary(multiply, this, snd);
+    }
+
+    public MatrixExpression times(double scalar) {
+        return times(constant(scalar));
+    }
+
+    // Elementwise division, any element where either side is 0 evaluates to 0.
+    public MatrixExpression dividedBy(MatrixExpression snd) {
+        return new Binary(divide, this, snd);
+    }
+
+    public MatrixExpression negate() {
+        return new Unary(negate, this);
+    }
+
+    // Natural log, elements equal to 0 evaluate to 0 rather than -Infinity.
+    public MatrixExpression log() {
+        return new Unary(log, this);
+    }
+
+    public MatrixExpression square() {
+        return new Unary(square, this);
+    }
+
+    // 1 / (1 + e^-x) at each element.
+    public MatrixExpression sigmoid() {
+        return new Unary(sigmoid, this);
+    }
+
+    public MatrixExpression sqrt() {
+        return new Unary(sqrt, this);
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    public int getColumns() {
+        return columns;
+    }
+
+    // Sums every element of the expression without storing any of them.
+    public double sum() {
+        checkSized();
+        double result = 0;
+        for (int i = 0; i < rows; i++) {
+            for (int j = 0; j < columns; j++) {
+                result += valueAt(i, j);
+            }
+        }
+        return result;
+    }
+
+    // Computes every element of the expression into a new matrix.
+    public Matrix evaluate() {
+        checkSized();
+        return evaluateInto(new Matrix(rows, columns));
+    }
+
+    // Computes every element of the expression into destination.
+    // The destination may also appear in the expression as each element
+    // is only read before it is written.
+    public Matrix evaluateInto(Matrix destination) {
+        checkSized();
+        if (destination.getRows() != rows || destination.getColumns() != columns) {
+            System.out.println("Matrix dimensions incompatible: " + rows + " != " +
+                    destination.getRows() + " || " + columns + " != " + destination.getColumns());
+            return null;
+        }
+        if (destination.getPrecision() == Precision.FLOAT) {
+            return evaluateIntoFloat((FloatMatrix) destination);
+        }
+        double[] result = destination.getData();
+        int colStride = destination.getColumnStride();
+        for (int i = 0; i < rows; i++) {
+            int p = destination.getOffset() + i * destination.getRowStride();
+            for (int j = 0; j < columns; j++, p += colStride) {
+                result[p] = valueAt(i, j);
+            }
+        }
+        return destination;
+    }
+
+    // Elements are still computed in double and rounded as they are stored.
+    private Matrix evaluateIntoFloat(FloatMatrix destination) {
+        float[] result = destination.getFloatData();
+        int colStride = destination.getColumnStride();
+        for (int i = 0; i < rows; i++) {
+            int p = destination.getOffset() + i * destination.getRowStride();
+            for (int j = 0; j < columns; j++, p += colStride) {
+                result[p] = (float) valueAt(i, j);
+            }
+        }
+        return destination;
+    }
+
+    private void checkSized() {
+        if (rows == broadcast) {
+            throw new IllegalStateException("Expression has no matrix to take its size from");
+        }
+    }
+
+    // Reads elements straight out of a matrix.
+    private static final class Leaf extends MatrixExpression {
+
+        Leaf(Matrix matrix) {
+            super(matrix.getRows(), matrix.getColumns());
+            values = matrix.getData();
+            offset = matrix.getOffset();
+            rowStride = matrix.getRowStride();
+            colStride = matrix.getColumnStride();
+        }
+
+        double valueAt(int i, int j) {
+            return values[offset + i * rowStride + j * colStride];
+        }
+
+        private final double[] values;
+        private final int offset;
+        private final int rowStride;
+        private final int colStride;
+    }
+
+    private static final class FloatLeaf extends MatrixExpression {
+
+        FloatLeaf(FloatMatrix matrix) {
+            super(matrix.getRows(), matrix.getColumns());
+            values = matrix.getFloatData();
+            offset = matrix.getOffset();
+            rowStride = matrix.getRowStride();
+            colStride = matrix.getColumnStride();
+        }
+
+        double valueAt(int i, int j) {
+            return values[offset + i * rowStride + j * colStride];
+        }
+
+        private final float[] values;
+        private final int offset;
+        private final int rowStride;
+        private final int colStride;
+    }
+
+    private static final class Constant extends MatrixExpression {
+
+        Constant(double value) {
+            super(broadcast, broadcast);
+            this.value = value;
+        }
+
+        double valueAt(int i, int j) {
+            return value;
+        }
+
+        private final double value;
+    }
+
+    private static final class Unary extends MatrixExpression {
+
+        Unary(int operation, MatrixExpression operand) {
+            super(operand.rows, operand.columns);
+            this.operation = operation;
+            this.operand = operand;
+        }
+
+        double valueAt(int i, int j) {
+            double x = operand.valueAt(i, j);
+            switch (operation) {
+                case negate:
+                    return -x;
+                case log:
+                    return x != 0 ? Math.log(x) : 0;
+                case square:
+                    return x * x;
+                case sqrt:
+                    return Math.sqrt(x);
+                default:
+                    return 1 / (1 + Math.exp(-x));
+            }
+        }
+
+        private final int operation;
+        private final MatrixExpression operand;
+    }
+
+    private static final class Binary extends MatrixExpression {
+
+        Binary(int operation, MatrixExpression fst, MatrixExpression snd) {
+            super(fst.rows != broadcast ? fst.rows : snd.rows,
+                    fst.columns != broadcast ? fst.columns : snd.columns);
+            if (fst.rows != broadcast && snd.rows != broadcast &&
+                    (fst.rows != snd.rows || fst.columns != snd.columns)) {
+                throw new IllegalArgumentException("Matrix dimensions incompatible: " + fst.rows + "*" +
+                        fst.columns + " and " + snd.rows + "*" + snd.columns);
+            }
+            this.operation = operation;
+            this.fst = fst;
+            this.snd = snd;
+        }
+
+        double valueAt(int i, int j) {
+            double x = fst.valueAt(i, j);
+            double y = snd.valueAt(i, j);
+            switch (operation) {
+                case add:
+                    return x + y;
+                case subtract:
+                    return x - y;
+                case multiply:
+                    return x * y;
+                default:
+                    return x != 0 && y != 0 ? x / y : 0;
+            }
+        }
+
+        private final int operation;
+        private final MatrixExpression fst;
+        private final MatrixExpression snd;
+    }
+
+    private final int rows;
+    private final int columns;
+}
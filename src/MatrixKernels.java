@@ -0,0 +1,195 @@
+/**
+ * The innermost loops of the matrix library, run over runs of
+ * contiguous elements of flat arrays.
+ * GemmKernel and Matrix's element-wise functions hand these the
+ * rows they are working on, so swapping the implementation changes
+ * how every hot loop is executed without touching any caller.
+ *
+ * Implementations are found with ServiceLoader, listed in
+ * META-INF/services/MatrixKernels, and need a public no argument
+ * constructor. ScalarKernels is plain Java, is always available and is
+ * the reference every other implementation is checked against.
+ * VectorKernels uses the JDK Vector API and loads when the
+ * jdk.incubator.vector module is present and the class has been
+ * compiled (see simd/VectorKernels.java).
+ *
+ * -Dmatrix.kernels=<name> picks an implementation by name, the default
+ * "auto" picks the first one other than the reference that loads.
+ * Whichever is picked must first pass the conformance check below, any
+ * that gives different results to the reference is not used.
+ * "java MatrixKernels" runs the check against every implementation found.
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+
+public abstract class MatrixKernels {
+
+    // Largest relative difference from the reference allowed by the conformance check.
+    public static final double tolerance = 1e-12;
+
+    private static final MatrixKernels current = load();
+
+    // The kernels chosen at startup.
+    public static MatrixKernels get() {
+        return current;
+    }
+
+    // Every implementation that could be loaded, the reference first.
+    public static List<MatrixKernels> available() {
+        List<MatrixKernels> result = new ArrayList<MatrixKernels>();
+        result.add(new ScalarKernels());
+        Iterator<MatrixKernels> providers = ServiceLoader.load(MatrixKernels.class).iterator();
+        while (true) {
+            try {
+                if (!providers.hasNext()) break;
+                MatrixKernels provider = providers.next();
+                if (!provider.name().equals(result.get(0).name())) result.add(provider);
+            } catch (ServiceConfigurationError e) {
+                // Listed but not compiled, or not runnable on this JDK.
+            } catch (LinkageError e) {
+                // Needs a module that was not added.
+            }
+        }
+        return result;
+    }
+
+    // Picks the implementation asked for with -Dmatrix.kernels, or the reference
+    // if it can't be found or does not conform.
+    private static MatrixKernels load() {
+        String choice = System.getProperty("matrix.kernels", "auto");
+        List<MatrixKernels> candidates = available();
+        MatrixKernels reference = candidates.get(0);
+        MatrixKernels chosen = null;
+        for (MatrixKernels candidate : candidates) {
+            if (choice.equals(candidate.name()) || (choice.equals("auto") && candidate != reference)) {
+                chosen = candidate;
+                break;
+            }
+        }
+        if (chosen == null) {
+            if (!choice.equals("auto")) {
+                System.err.println("Matrix kernels \"" + choice + "\" not available, using " + reference.name());
+            }
+            return reference;
+        }
+        String failure = chosen.checkConformance(reference);
+        if (failure != null) {
+            System.err.println("Matrix kernels \"" + chosen.name() + "\" failed conformance check, using " +
+                    reference.name() + ": " + failure);
+            return reference;
+        }
+        return chosen;
+    }
+
+    // Runs every kernel of this implementation and the reference on the same random
+    // data, with lengths and offsets that don't line up with any vector width.
+    // Returns null if every result agrees within tolerance, otherwise what differed.
+    public String checkConformance(MatrixKernels reference) {
+        Random rGen = new Random(1);
+        int[] lengths = {0, 1, 3, 7, 8, 17, 64, 255, 1000};
+        for (int length : lengths) {
+            int xFrom = rGen.nextInt(5);
+            int yFrom = rGen.nextInt(5);
+            double[] x = randomArray(rGen, xFrom + length);
+            double[] y = randomArray(rGen, yFrom + length);
+            double alpha = rGen.nextDouble() * 4 - 2;
+
+            double expected = reference.dot(x, xFrom, y, yFrom, length);
+            double actual = dot(x, xFrom, y, yFrom, length);
+            if (!agrees(expected, actual, length)) return "dot, length " + length;
+
+            double[] expectedY = y.clone();
+            double[] actualY = y.clone();
+            reference.axpy(alpha, x, xFrom, expectedY, yFrom, length);
+            axpy(alpha, x, xFrom, actualY, yFrom, length);
+            if (!agrees(expectedY, actualY, 1)) return "axpy, length " + length;
+            // Products split rows into pieces, each element must come out the same bits however it's split.
+            double[] splitY = y.clone();
+            int split = length / 2 + 1;
+            if (split < length) {
+                axpy(alpha, x, xFrom, splitY, yFrom, split);
+                axpy(alpha, x, xFrom + split, splitY, yFrom + split, length - split);
+                if (!Arrays.equals(actualY, splitY)) return "axpy split at " + split + ", length " + length;
+            }
+
+            expectedY = y.clone();
+            actualY = y.clone();
+            reference.multiply(x, xFrom, expectedY, yFrom, length);
+            multiply(x, xFrom, actualY, yFrom, length);
+            if (!agrees(expectedY, actualY, 1)) return "multiply, length " + length;
+
+            expectedY = y.clone();
+            actualY = y.clone();
+            reference.scale(alpha, expectedY, yFrom, length);
+            scale(alpha, actualY, yFrom, length);
+            if (!agrees(expectedY, actualY, 1)) return "scale, length " + length;
+
+            // Spread the inputs far enough to reach both saturated ends of the sigmoid.
+            double[] z = x.clone();
+            for (int j = 0; j < z.length; j++) {
+                z[j] *= 1000;
+            }
+            expectedY = y.clone();
+            actualY = y.clone();
+            reference.sigmoid(z, xFrom, expectedY, yFrom, length);
+            sigmoid(z, xFrom, actualY, yFrom, length);
+            if (!agrees(expectedY, actualY, 1)) return "sigmoid, length " + length;
+        }
+        return null;
+    }
+
+    private static double[] randomArray(Random rGen, int length) {
+        double[] result = new double[length];
+        for (int j = 0; j < length; j++) {
+            result[j] = rGen.nextDouble() * 2 - 1;
+        }
+        return result;
+    }
+
+    // Sums may be added up in a different order, so their error grows with their length.
+    private static boolean agrees(double expected, double actual, int terms) {
+        return Math.abs(expected - actual) <= tolerance * Math.max(1, terms) * Math.max(1, Math.abs(expected));
+    }
+
+    private static boolean agrees(double[] expected, double[] actual, int terms) {
+        for (int j = 0; j < expected.length; j++) {
+            if (!agrees(expected[j], actual[j], terms)) return false;
+        }
+        return true;
+    }
+
+    // Checks every implementation found and reports which one is in use.
+    public static void main(String[] args) {
+        List<MatrixKernels> candidates = available();
+        MatrixKernels reference = candidates.get(0);
+        for (MatrixKernels candidate : candidates) {
+            String failure = candidate.checkConformance(reference);
+            System.out.println(candidate.name() + ": " + (failure == null ? "ok" : "FAILED " + failure));
+        }
+        System.out.println("In use: " + get().name());
+    }
+
+    // Name used to pick this implementation with -Dmatrix.kernels.
+    public abstract String name();
+
+    // Dot product of x[xFrom:xFrom+length] and y[yFrom:yFrom+length].
+    public abstract double dot(double[] x, int xFrom, double[] y, int yFrom, int length);
+
+    // y[yFrom:yFrom+length] += alpha * x[xFrom:xFrom+length]
+    public abstract void axpy(double alpha, double[] x, int xFrom, double[] y, int yFrom, int length);
+
+    // y[yFrom:yFrom+length] .*= x[xFrom:xFrom+length]
+    public abstract void multiply(double[] x, int xFrom, double[] y, int yFrom, int length);
+
+    // y[from:from+length] *= alpha
+    public abstract void scale(double alpha, double[] y, int from, int length);
+
+    // y[yFrom:yFrom+length] = 1 / (1 + e^-x[xFrom:xFrom+length])
+    public abstract void sigmoid(double[] x, int xFrom, double[] y, int yFrom, int length);
+}
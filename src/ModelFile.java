@@ -0,0 +1,126 @@
+/**
+ * Reads and writes a network's weight matrices as a compact binary file
+ * so a trained network can be reused instead of retrained.
+ * The file records a checksum of whatever the weights were trained from,
+ * a file with a different checksum is treated as out of date.
+ *
+ * Layout, big endian:
+ *   int magic, int version, long training checksum, int matrix count,
+ *   then for each matrix: int precision (0 double, 1 float), int rows,
+ *   int columns and rows*columns values, row after row.
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+final class ModelFile {
+
+    // "OXNN"
+    private static final int magic = 0x4F584E4E;
+    private static final int version = 1;
+    private static final int headerBytes = 4 + 4 + 8 + 4;
+    private static final int matrixHeaderBytes = 4 + 4 + 4;
+
+    private ModelFile() {
+    }
+
+    // Writes the matrices to filename, in the precision each is stored in.
+    // The file is written alongside and then moved into place, so a crash
+    // part way through never leaves a half written model behind.
+    static void write(String filename, long trainingChecksum, Matrix... matrices) throws IOException {
+        long size = headerBytes;
+        for (Matrix matrix : matrices) {
+            size += matrixHeaderBytes + (long) matrix.getRows() * matrix.getColumns() * bytesPerValue(matrix);
+        }
+        final ByteBuffer buffer = ByteBuffer.allocate((int) size);
+        buffer.putInt(magic).putInt(version).putLong(trainingChecksum).putInt(matrices.length);
+        for (Matrix matrix : matrices) {
+            boolean isFloat = matrix.getPrecision() == Precision.FLOAT;
+            buffer.putInt(isFloat ? 1 : 0).putInt(matrix.getRows()).putInt(matrix.getColumns());
+            for (int i = 0; i < matrix.getRows(); i++) {
+                for (int j = 0; j < matrix.getColumns(); j++) {
+                    if (isFloat) {
+                        buffer.putFloat((float) matrix.objectAtPoint(i, j));
+                    } else {
+                        buffer.putDouble(matrix.objectAtPoint(i, j));
+                    }
+                }
+            }
+        }
+        buffer.flip();
+        AtomicFile.write(Paths.get(filename), new AtomicFile.Contents() {
+            public void writeTo(FileChannel channel) throws IOException {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+        });
+    }
+
+    // Memory maps filename and reads back the matrices written to it.
+    // Returns null if there is no such file or it was written for a different
+    // training checksum, throws if the file is not a valid model.
+    static Matrix[] read(String filename, long trainingChecksum) throws IOException {
+        Path path = Paths.get(filename);
+        if (!Files.isRegularFile(path)) return null;
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            if (size < headerBytes) throw new IOException("Model file too short: " + filename);
+            if (size > Integer.MAX_VALUE) throw new IOException("Model file too big to map: " + filename);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (buffer.getInt() != magic) throw new IOException("Not a model file: " + filename);
+            int fileVersion = buffer.getInt();
+            if (fileVersion != version) throw new IOException("Unsupported model file version: " + fileVersion);
+            if (buffer.getLong() != trainingChecksum) return null;
+            // Every count and size is checked against what is left of the file
+            // before anything is allocated from it.
+            int count = buffer.getInt();
+            if (count < 0 || (long) count * matrixHeaderBytes > buffer.remaining()) {
+                throw new IOException("Corrupt model file, bad matrix count " + count + ": " + filename);
+            }
+            Matrix[] result = new Matrix[count];
+            for (int k = 0; k < result.length; k++) {
+                if (buffer.remaining() < matrixHeaderBytes) throw new IOException("Model file truncated: " + filename);
+                int precision = buffer.getInt();
+                int rows = buffer.getInt();
+                int columns = buffer.getInt();
+                if (precision != 0 && precision != 1) {
+                    throw new IOException("Corrupt model file, unknown precision " + precision + ": " + filename);
+                }
+                if (rows < 0 || columns < 0) {
+                    throw new IOException("Corrupt model file, bad matrix size " + rows + "*" + columns + ": " +
+                            filename);
+                }
+                boolean isFloat = precision == 1;
+                long valueBytes = (long) rows * columns * (isFloat ? 4 : 8);
+                if (buffer.remaining() < valueBytes) {
+                    throw new IOException("Model file truncated: " + filename);
+                }
+                if (isFloat) {
+                    float[] values = new float[rows * columns];
+                    buffer.asFloatBuffer().get(values);
+                    result[k] = new FloatMatrix(values, rows, columns);
+                } else {
+                    double[] values = new double[rows * columns];
+                    buffer.asDoubleBuffer().get(values);
+                    result[k] = new Matrix(values, rows, columns);
+                }
+                buffer.position(buffer.position() + (int) valueBytes);
+            }
+            return result;
+        } finally {
+            channel.close();
+        }
+    }
+
+    private static int bytesPerValue(Matrix matrix) {
+        return matrix.getPrecision() == Precision.FLOAT ? 4 : 8;
+    }
+}
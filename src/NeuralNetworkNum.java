@@ -6,9 +6,12 @@
 
 
 import java.awt.*;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 
 public class NeuralNetworkNum {
@@ -31,26 +34,74 @@ public class NeuralNetworkNum {
     // to check that the computation at each step is correct, note EXTREMELY TIME CONSUMING.
     // A single debug session doing this took almost 2 hours although it solved the problem.
     public NeuralNetworkNum(Matrix trainingData, Matrix trainingLabels, int maxIters, Matrix debugTheta1, Matrix debugTheta2) {
+        this(trainingData, trainingLabels, maxIters, debugTheta1, debugTheta2, Precision.DOUBLE);
+    }
+
+    // As above but the network is trained and run in the given precision.
+    // In FLOAT precision the training data, weights and every intermediate
+    // matrix are stored as floats, halving memory use and bandwidth.
+    public NeuralNetworkNum(Matrix trainingData, Matrix trainingLabels, int maxIters,
+                            Matrix debugTheta1, Matrix debugTheta2, Precision precision) {
+        this(trainingData, trainingLabels, maxIters, debugTheta1, debugTheta2, precision, new TrainingOptions());
+    }
+
+    // As above with settings for how the network is trained, see TrainingOptions.
+    // With mini-batches maxIters is the number of epochs.
+    public NeuralNetworkNum(Matrix trainingData, Matrix trainingLabels, int maxIters,
+                            Matrix debugTheta1, Matrix debugTheta2, Precision precision, TrainingOptions options) {
         inputLayerSize = trainingData.getColumns();
         this.maxIters = maxIters;
+        this.precision = precision;
+        this.options = options;
         rGen = new Random();
         numLabels = determineLabels(trainingLabels);
         if (debugTheta1 != null && debugTheta2 != null) {
-            Theta1 = debugTheta1;
-            Theta2 = debugTheta2;
+            // Copied as the weights are updated in place during training.
+            Theta1 = debugTheta1.copyInto(newMatrix(debugTheta1.getRows(), debugTheta1.getColumns()));
+            Theta2 = debugTheta2.copyInto(newMatrix(debugTheta2.getRows(), debugTheta2.getColumns()));
         } else {
             Theta1 = randInitializeWeights(inputLayerSize, hiddenLayerSize);
             Theta2 = randInitializeWeights(hiddenLayerSize, numLabels);
         }
-        Theta1Gradient = new Matrix(new double[Theta1.getRows()][Theta1.getColumns()]);
-        Theta2Gradient = new Matrix(new double[Theta2.getRows()][Theta2.getColumns()]);
+        Theta1Gradient = newMatrix(Theta1.getRows(), Theta1.getColumns());
+        Theta2Gradient = newMatrix(Theta2.getRows(), Theta2.getColumns());
+        optimizer = options.getOptimizer() != null ? options.getOptimizer() : Optimizer.gradientDescent(alpha);
+        weights = new Matrix[]{Theta1, Theta2};
+        weightGradients = new Matrix[]{Theta1Gradient, Theta2Gradient};
+        optimizer.initialise(weights, weightGradients);
         Xdata = trainingData;
         Ydata = trainingLabels;
-        feedForwardMap = new HashMap<String, Matrix>();
+        if (options.getValidationFraction() > 0) holdOutValidationSet(options.getValidationFraction());
         binaryLabels = labelsToBinary();
+        allocateTrainingBuffers();
         train();
     }
 
+    // Creates an already trained network from the weights of one saved with save.
+    // No training data is kept so only predict can be used.
+    public NeuralNetworkNum(Matrix theta1, Matrix theta2, Precision precision) {
+        inputLayerSize = theta1.getColumns() - 1;
+        numLabels = theta2.getRows();
+        this.precision = precision;
+        rGen = new Random();
+        Theta1 = theta1.toPrecision(precision);
+        Theta2 = theta2.toPrecision(precision);
+    }
+
+    // Loads a network saved with save, returns null if there is none or it
+    // was trained from data with a different checksum.
+    public static NeuralNetworkNum load(String filename, long trainingChecksum, Precision precision) throws IOException {
+        Matrix[] weights = ModelFile.read(filename, trainingChecksum);
+        if (weights == null || weights.length != 2) return null;
+        return new NeuralNetworkNum(weights[0], weights[1], precision);
+    }
+
+    // Saves the trained weights so the network can be loaded instead of retrained.
+    // trainingChecksum identifies the data it was trained from.
+    public void save(String filename, long trainingChecksum) throws IOException {
+        ModelFile.write(filename, trainingChecksum, Theta1, Theta2);
+    }
+
     // Iterates through the training label matrix to determine how many unique values there
     // are and thus how many labels there are.
     private int determineLabels(Matrix trainingLabels) {
@@ -65,10 +116,28 @@ public class NeuralNetworkNum {
         return differentLabels.size();
     }
 
+    // Moves a random fraction of the examples out of the training data into a
+    // validation set, which training never sees and is instead used to judge
+    // how well the network generalises.
+    private void holdOutValidationSet(double fraction) {
+        int m = Xdata.getRows();
+        int held = Math.max(1, Math.min(m - 1, (int) Math.round(m * fraction)));
+        int[] order = new int[m];
+        for (int i = 0; i < m; i++) {
+            order[i] = i;
+        }
+        shuffle(order);
+        validationData = Xdata.gatherRowsInto(order, 0, Xdata.like(held, Xdata.getColumns()));
+        validationLabels = Ydata.gatherRowsInto(order, 0, Ydata.like(held, Ydata.getColumns()));
+        Xdata = Xdata.gatherRowsInto(order, held, Xdata.like(m - held, Xdata.getColumns()));
+        Ydata = Ydata.gatherRowsInto(order, held, Ydata.like(m - held, Ydata.getColumns()));
+    }
+
     // Runs gradient descent and then calculates accuracy.
     private void train() {
         gradientDescent();
         predictBackend(Xdata, true);
+        if (validationData != null) printSimp("Validation accuracy: " + accuracy(validationData, validationLabels));
     }
 
     // Runs gradient descent.
@@ -76,30 +145,231 @@ public class NeuralNetworkNum {
     // The theta matrix weights are then nudged in the correct direction by
     // iteratively computing gradients of every element and taking a small step in
     // the direction which minimises the error.
+    // Every matrix an iteration touches is allocated up front by allocateTrainingBuffers
+    // and all of the work is done in place, so iterations do not allocate any arrays.
     private void gradientDescent() {
+        if (batchSize() < Xdata.getRows()) {
+            miniBatchGradientDescent();
+            return;
+        }
+        startTraining();
         int iteration = 0;
-        double currentCost = computeCost();
-        while (iteration < maxIters) {
-            recomputeGradientsMatrices();
-            currentCost = computeCost();
-            Theta1 = Theta1.matrixAddition(Theta1Gradient.scalarMultiplication(-1 * alpha));
-            Theta2 = Theta2.matrixAddition(Theta2Gradient.scalarMultiplication(-1 * alpha));
+        double currentCost = Double.NaN;
+        String stopReason = null;
+        while (iteration < maxIters && stopReason == null) {
+            currentCost = gradientDescentStep();
             iteration++;
-            System.out.println("Iteration    " + iteration + " | Cost: " + currentCost);
+            stopReason = checkProgress(iteration, "iterations", currentCost);
+        }
+        finishTraining(iteration, "iterations", currentCost, stopReason);
+    }
+
+    // A single step of gradient descent over the batch in batchInputs and batchLabels,
+    // returns the cost before the step. The cost comes from the same forward pass
+    // as the gradients, so each step runs the network forward just once.
+    // Package private so the benchmarks can time an iteration on its own.
+    double gradientDescentStep() {
+        recomputeGradientsMatrices();
+        double currentCost = currentCost();
+        takeStep();
+        return currentCost;
+    }
+
+    // Runs mini-batch stochastic gradient descent for maxIters epochs.
+    // Each epoch shuffles the order of the examples and takes a step after
+    // every batch of them, so a step costs the same however many examples
+    // there are. The cost of each batch comes from the forward pass its
+    // gradients are computed from, the cost printed is their average.
+    // Examples left over after the last whole batch of an epoch sit that
+    // epoch out, with a new order each epoch they are different ones every time.
+    private void miniBatchGradientDescent() {
+        int m = Xdata.getRows();
+        int batchSize = batchSize();
+        int batches = m / batchSize;
+        int[] order = new int[m];
+        for (int i = 0; i < m; i++) {
+            order[i] = i;
+        }
+        startTraining();
+        int epoch = 0;
+        double epochCost = 0;
+        String stopReason = null;
+        while (epoch < maxIters && stopReason == null) {
+            shuffle(order);
+            epochCost = 0;
+            for (int batch = 0; batch < batches; batch++) {
+                if (sparseInputs != null) {
+                    sparseBatchInputs.gatherRowsFrom(sparseInputs, order, batch * batchSize);
+                } else {
+                    trainingInputs.gatherRowsInto(order, batch * batchSize, batchInputs);
+                }
+                binaryLabels.gatherRowsInto(order, batch * batchSize, batchLabels);
+                epochCost += gradientDescentStep();
+            }
+            epochCost /= batches;
+            epoch++;
+            stopReason = checkProgress(epoch, "epochs", epochCost);
+        }
+        finishTraining(epoch, "epochs", epochCost, stopReason);
+    }
+
+    // Resets the record of how training is going, see checkProgress.
+    private void startTraining() {
+        trainingStart = System.nanoTime();
+        previousCost = Double.NaN;
+        bestValidationCost = Double.POSITIVE_INFINITY;
+        bestIteration = 0;
+        improvedValidationCost = Double.POSITIVE_INFINITY;
+        improvedIteration = 0;
+        if (validationData != null) {
+            bestTheta1 = newMatrix(Theta1.getRows(), Theta1.getColumns());
+            bestTheta2 = newMatrix(Theta2.getRows(), Theta2.getColumns());
+        }
+    }
+
+    // Called after every iteration, or epoch, with the cost it reported.
+    // Keeps a copy of the weights with the lowest validation cost so far
+    // and returns why training should stop early, or null to carry on.
+    // Accuracy on a small validation set moves in whole examples and can peak
+    // by chance early on, the cost moves smoothly so it is what's compared.
+    private String checkProgress(int iteration, String unit, double cost) {
+        if (options.getProgressListener() != null) {
+            options.getProgressListener().progress(iteration, maxIters, cost);
+        }
+        if (validationData != null) {
+            double validationCost = costOfOutput(outputLayer(validationData), validationLabels);
+            if (validationCost < bestValidationCost) {
+                bestValidationCost = validationCost;
+                bestIteration = iteration;
+                Theta1.copyInto(bestTheta1);
+                Theta2.copyInto(bestTheta2);
+            }
+            if (validationCost < improvedValidationCost - options.getMinValidationImprovement()) {
+                improvedValidationCost = validationCost;
+                improvedIteration = iteration;
+            } else if (options.getPatience() > 0 && iteration - improvedIteration >= options.getPatience()) {
+                return "validation cost has not improved for " + options.getPatience() + " " + unit;
+            }
+        }
+        double costChange = Math.abs(previousCost - cost);
+        previousCost = cost;
+        if (costChange < options.getMinCostChange()) {
+            return "cost changed by " + costChange;
+        }
+        long budget = options.getTimeBudgetMillis();
+        if (budget > 0 && (System.nanoTime() - trainingStart) / 1000000 >= budget) {
+            return "the time budget of " + budget + "ms ran out";
         }
+        return null;
+    }
+
+    // Goes back to the weights with the lowest validation cost and
+    // prints how training went, once rather than every iteration.
+    private void finishTraining(int iterations, String unit, double cost, String stopReason) {
+        printSimp("Trained for " + iterations + " " + unit + " | Cost: " + cost +
+                (stopReason != null ? " | Stopped early as " + stopReason : ""));
+        if (validationData != null && bestIteration != iterations) {
+            bestTheta1.copyInto(Theta1);
+            bestTheta2.copyInto(Theta2);
+            printSimp("Using weights from after " + bestIteration + " " + unit);
+        }
+    }
+
+    // Moves the weights down their gradients as the optimizer sees fit.
+    private void takeStep() {
+        optimizer.step(weights, weightGradients);
+    }
+
+    // Fisher-Yates shuffle.
+    private void shuffle(int[] order) {
+        for (int i = order.length - 1; i > 0; i--) {
+            int j = rGen.nextInt(i + 1);
+            int swap = order[i];
+            order[i] = order[j];
+            order[j] = swap;
+        }
+    }
+
+    // Number of examples a step of gradient descent is taken over.
+    private int batchSize() {
+        int batchSize = options.getBatchSize();
+        if (batchSize == TrainingOptions.fullBatch || batchSize > Xdata.getRows()) return Xdata.getRows();
+        return batchSize;
     }
 
     // Given a list of points, performs all pre-processing on the points.
     // Then runs the points through the network to compute a guess of their symbol.
     public int predict(ArrayList<Point> pointsForDrawing) {
-        numberExtractor scaler = new numberExtractor();
-        ArrayList<Point> scaledPoints = scaler.scalePoints(pointsForDrawing);
-        Point[] boundingBox = scaler.boundingBoxForSingleShape();
-        Matrix pointsMatrix = new Matrix(null);
-        pointsMatrix.makeMatrixFromPointsArrayList(scaledPoints, boundingBox);
-        pointsMatrix.emulateWriting();
-        pointsMatrix = pointsMatrix.scaleDown();
-        return predictBackend(pointsMatrix.matrixToRowVector(), false);
+        return classify(pointsForDrawing).getLabel();
+    }
+
+    // As predict, also giving how probable the network thinks each label is
+    // and whether the prediction is clear cut enough to trust.
+    public Prediction classify(List<Point> pointsForDrawing) {
+        return predictBackend(preprocess(pointsForDrawing), false);
+    }
+
+    // Predictions whose two most probable labels are closer than margin are
+    // rejected, see Prediction.isRejected. 0, the default, rejects none.
+    public void setRejectionMargin(double margin) {
+        if (!(margin >= 0 && margin <= 1)) {
+            throw new IllegalArgumentException("Rejection margin must be between 0 and 1: " + margin);
+        }
+        rejectionMargin = margin;
+    }
+
+    public double getRejectionMargin() {
+        return rejectionMargin;
+    }
+
+    // An engine that predicts drawings one at a time as predict does, but
+    // without allocating, see InferenceEngine. It uses the rejection margin
+    // set when it is made.
+    public InferenceEngine newInferenceEngine() {
+        return new InferenceEngine(Theta1, Theta2, rejectionMargin);
+    }
+
+    // Predicts many drawings at once, such as the drawings of logged games.
+    // The drawings are preprocessed in parallel on the common pool into the rows
+    // of one matrix, which is then run through the network in a single pass.
+    // Every drawing needs at least one point, the index of the first that
+    // doesn't is thrown before any are preprocessed.
+    public Predictions predictBatch(List<? extends List<Point>> drawings) {
+        return predictBatch(drawings, ForkJoinPool.commonPool());
+    }
+
+    // As predictBatch, preprocessing the drawings on pool.
+    public Predictions predictBatch(List<? extends List<Point>> drawings, ForkJoinPool pool) {
+        int n = drawings.size();
+        for (int i = 0; i < n; i++) {
+            if (drawings.get(i) == null || drawings.get(i).isEmpty()) {
+                throw new IllegalArgumentException("Drawing " + i + " of the batch has no points");
+            }
+        }
+        Matrix inputs = new Matrix(n, inputLayerSize + 1);
+        inputs.extractColumn(0).fill(1);
+        if (n > 0) pool.invoke(new PreprocessTask(drawings, inputs, 0, n));
+        Matrix h2 = outputLayerOfInputs(inputs);
+        Prediction[] predictions = new Prediction[n];
+        for (int i = 0; i < n; i++) {
+            predictions[i] = predictionOfRow(h2, i);
+        }
+        return new Predictions(predictions, h2);
+    }
+
+    // Turns the points of a drawing into the row of pixels the network takes.
+    // The drawing is scaled to its bounding box, thickened as if drawn with a pen
+    // and then scaled down.
+    // Networks with smaller inputs, trained on data from Downsampler.downsampleRows,
+    // have the drawing scaled down again to their size.
+    private Matrix preprocess(List<Point> pointsForDrawing) {
+        // A rasterizer each, as this runs for several drawings at once.
+        Matrix features = new StrokeRasterizer().rasterise(pointsForDrawing);
+        int edgeLength = (int) Math.sqrt(inputLayerSize);
+        if (edgeLength != StrokeRasterizer.gridSize) {
+            features = new Downsampler(edgeLength, edgeLength).downsample(features);
+        }
+        return features.matrixToRowVector();
     }
 
     // Predicts the value of a matrix by running it though the network.
@@ -107,149 +377,306 @@ public class NeuralNetworkNum {
     // data could have. The highest probability label is then chosen.
     // To determine accuracy, check how many guessed labels are the same
     // as the corresponding label in the input label matrix.
-    private int predictBackend(Matrix dataToPredict, boolean displayAccuracy) {
-        ArrayList<Double> result = new ArrayList<Double>();
-        dataToPredict = dataToPredict.prependColumnOfValue(1);
-        Matrix h1 = sigmoidFunction(dataToPredict.matrixMultiplication(Theta1.transpose()));
+    private Prediction predictBackend(Matrix dataToPredict, boolean displayAccuracy) {
+        Matrix h2 = outputLayer(dataToPredict);
+        if (displayAccuracy) printSimp("Accuracy: " + accuracyOfOutput(h2, Ydata));
+        return predictionOfRow(h2, 0);
+    }
+
+    // The prediction made by row i of the output layer.
+    private Prediction predictionOfRow(Matrix h2, int i) {
+        double[] probabilities = new double[h2.getColumns()];
+        for (int j = 0; j < probabilities.length; j++) {
+            probabilities[j] = h2.objectAtPoint(i, j);
+        }
+        int res = predictedLabel(h2, i);
+        return new Prediction(res == 10 ? 0 : res, probabilities, rejectionMargin);
+    }
+
+    // Runs every row of data through the network, giving the probability of each label.
+    private Matrix outputLayer(Matrix data) {
+        return outputLayerOfInputs(data.toPrecision(precision).prependColumnOfValue(1));
+    }
+
+    // As outputLayer, for inputs which already have their bias column.
+    // Mostly blank inputs, as drawings are, are multiplied as a SparseMatrix.
+    private Matrix outputLayerOfInputs(Matrix inputs) {
+        Matrix z2;
+        if (precision == Precision.DOUBLE && SparseMatrix.isWorthUsing(inputs)) {
+            z2 = new SparseMatrix(inputs).multiplyByTransposeInto(Theta1, newMatrix(inputs.getRows(), Theta1.getRows()));
+        } else {
+            z2 = inputs.toPrecision(precision).multiplyByTranspose(Theta1);
+        }
+        Matrix h1 = sigmoidFunction(z2);
         h1 = h1.prependColumnOfValue(1);
-        Matrix h2 = sigmoidFunction(h1.matrixMultiplication(Theta2.transpose()));
-        int numCorrect = 0;
+        return sigmoidFunction(h1.multiplyByTranspose(Theta2));
+    }
+
+    // The most probable label of row i of the output layer.
+    private int predictedLabel(Matrix h2, int i) {
+        double rowMax = 0;
+        int maxIndex = 0;
+        for (int j = 0; j < h2.getColumns(); j++) {
+            if (h2.objectAtPoint(i, j) > rowMax) {
+                rowMax = h2.objectAtPoint(i, j);
+                maxIndex = j;
+            }
+        }
+//        maxIndex += 1;  Only required for 1 indexed mnist data
+        return maxIndex;
+    }
+
+    // Percentage of the rows of data the network gives the right label.
+    private double accuracy(Matrix data, Matrix labels) {
+        return accuracyOfOutput(outputLayer(data), labels);
+    }
+
+    // The unregularised cost of an output layer against the labels it should have given,
+    // averaged over its rows. Like costExpression, log(0) is taken as 0.
+    private double costOfOutput(Matrix h2, Matrix labels) {
+        double cost = 0;
         for (int i = 0; i < h2.getRows(); i++) {
-            double rowMax = 0;
-            int maxIndex = 0;
             for (int j = 0; j < h2.getColumns(); j++) {
-                if (h2.objectAtPoint(i, j) > rowMax) {
-                    rowMax = h2.objectAtPoint(i, j);
-                    maxIndex = j;
-                }
+                double h = labels.objectAtPoint(i, 0) == j ? h2.objectAtPoint(i, j) : 1 - h2.objectAtPoint(i, j);
+                if (h != 0) cost -= Math.log(h);
             }
-//            maxIndex += 1;  Only required for 1 indexed mnist data
-            result.add((double) maxIndex);
-            if (Ydata.objectAtPoint(i, 0) == (double)maxIndex) numCorrect++;
         }
-        if (displayAccuracy) printSimp("Accuracy: " + (((double)numCorrect / Ydata.getRows()) * 100.0));
-        int res = (int)(result.get(0) + .5);
-        return res == 10 ? 0 : res;
+        return cost / h2.getRows();
     }
 
-    // Computes a guess of which label a set of points belong to.
-    // Measures how far off a guess is
-    // This code is all vectorised to take advantage of optimised
-    // linear algebra libraries. With my library it makes no difference
-    // apart from succinctness.
+    private double accuracyOfOutput(Matrix h2, Matrix labels) {
+        int numCorrect = 0;
+        for (int i = 0; i < h2.getRows(); i++) {
+            if (labels.objectAtPoint(i, 0) == (double) predictedLabel(h2, i)) numCorrect++;
+        }
+        return ((double) numCorrect / labels.getRows()) * 100.0;
+    }
+
+    // Measures how far off the guesses of the last forward pass were, averaged over the batch.
+    // The shards sum their part of the cost as they go, so this only adds regularisation.
     // Computes: J = sum(1/m * sum(-newY.*log(a3) - (1 - newY).*log(1-a3)))
-    private double computeCost() {
-        double cost = 0;
-        double m = Xdata.getRows();
-        feedForward();
-        Matrix a3 = feedForwardMap.get("a3");
-        Matrix negativeY = binaryLabels.scalarMultiplication(-1);
-        Matrix negYLogA3 = negativeY.hadamardProduct(a3.elementwiseLog());
-        Matrix oneMinusY = binaryLabels.nMinusMatrix(1);
-        Matrix oneMinusA3 = a3.nMinusMatrix(1);
-        Matrix oneMinYLogA3 = oneMinusY.hadamardProduct(oneMinusA3.elementwiseLog());
-        Matrix firstSumInternal = negYLogA3.matrixAddition(oneMinYLogA3.scalarMultiplication(-1));
-        Matrix firstSum = firstSumInternal.sigmaSumColumnsToRowVector();
-        Matrix secondSumInternal = firstSum.scalarMultiplication(1/m);
-        for (int j = 0; j < secondSumInternal.getColumns(); j++) {
-            cost += secondSumInternal.objectAtPoint(0, j);
-        }
-        cost = regularizeCost(cost);
-        return cost;
-    }
-
-    // Computes a guess of which label a set of points belong to.
-    // Columns of 1 are prepended to take into account bias.
-    private void feedForward() {
-        Matrix a1 = Xdata.prependColumnOfValue(1);
-        Matrix z2 = a1.matrixMultiplication(Theta1.transpose());
-        Matrix a2 = sigmoidFunction(z2);
-        a2 = a2.prependColumnOfValue(1);
-        Matrix z3 = a2.matrixMultiplication(Theta2.transpose());
-        Matrix a3 = sigmoidFunction(z3);
-        feedForwardMap.put("a1", a1);
-        feedForwardMap.put("z2", z2);
-        feedForwardMap.put("a2", a2);
-        feedForwardMap.put("z3", z3);
-        feedForwardMap.put("a3", a3);
+    private double currentCost() {
+        double m = batchInputs.getRows();
+        double cost = shards[0].cost / m;
+        return regularizeCost(cost);
     }
 
+    // Allocates every matrix used during an iteration of gradient descent
+    // along with the element-wise expressions that read and write them.
+    // Training then reuses these rather than allocating new matrices.
+    // They are sized for a batch, with a full batch batchInputs and batchLabels
+    // are the training data and labels themselves, otherwise each batch is
+    // copied into them before its step. The batch is then split between the
+    // shards, a single shard holding all of it unless training is sharded.
+    // Mostly blank training data is also kept as a SparseMatrix, which the
+    // first layer is then multiplied by instead, and batches are gathered from.
+    private void allocateTrainingBuffers() {
+        // The training data is converted straight into trainingInputs and Xdata
+        // then becomes a view of it, so only one copy of the data is kept.
+        trainingInputs = Xdata.prependColumnOfValueInto(1, newMatrix(Xdata.getRows(), Xdata.getColumns() + 1));
+        Xdata = trainingInputs.cutColumnN(0);
+        int m = batchSize();
+        boolean isFullBatch = m == Xdata.getRows();
+        batchInputs = isFullBatch ? trainingInputs : newMatrix(m, trainingInputs.getColumns());
+        batchLabels = isFullBatch ? binaryLabels : newMatrix(m, numLabels);
+        if (SparseMatrix.isWorthUsing(trainingInputs)) {
+            sparseInputs = new SparseMatrix(trainingInputs);
+            sparseBatchInputs = isFullBatch ? sparseInputs :
+                    new SparseMatrix(m, trainingInputs.getColumns(), sparseInputs.largestNonZeros(m));
+        }
+        theta1SquaredSum = Theta1.expression().square();
+        theta2SquaredSum = Theta2.expression().square();
+
+        int shardCount = Math.min(options.getShards(), m);
+        shards = new Shard[shardCount];
+        for (int k = 0; k < shardCount; k++) {
+            int from = k * m / shardCount;
+            int to = (k + 1) * m / shardCount;
+            SparseMatrix sparseA1 = sparseBatchInputs == null ? null : sparseBatchInputs.rowRange(from, to);
+            shards[k] = new Shard(batchInputs.rowRange(from, to), sparseA1, batchLabels.rowRange(from, to));
+        }
+    }
     // Adds regularisation to suppress the impact of too many higher order terms.
     // ie smooths out a 7th order polynomial fitted to 8 points.
     // This enables the network to generalise better.
     // Computes: J = J + (lambda / (2 * m)) * sum(sum(sum(Theta1(:, 2:end).^2)) +
     //                                            sum(sum(Theta2(:, 2:end).^2)))
     private double regularizeCost(double cost) {
-        double theta1Sum = 0;
-        double theta2Sum = 0;
         double m = Xdata.getRows();
-        Matrix theta1Squared = Theta1.hadamardProduct(Theta1);
-        Matrix theta2Squared = Theta2.hadamardProduct(Theta2);
-        Matrix sumTheta1Squared = theta1Squared.sigmaSumColumnsToRowVector();
-        Matrix sumTheta2Squared = theta2Squared.sigmaSumColumnsToRowVector();
-        for (int j = 0; j < sumTheta1Squared.getColumns(); j++) {
-            theta1Sum += sumTheta1Squared.objectAtPoint(0, j);
-        }
-        for (int j = 0; j < sumTheta2Squared.getColumns(); j++) {
-            theta2Sum += sumTheta2Squared.objectAtPoint(0, j);
-        }
-        double result = theta1Sum + theta2Sum;
+        double result = theta1SquaredSum.sum() + theta2SquaredSum.sum();
         result = result * (lambda / (2 * m));
         return cost + result;
     }
 
     // Adds regularisation to gradient matrices.
     private void regulariseGradients() {
-        Matrix theta1Grad1stCol = Theta1Gradient.extractColumn(0);
-        Matrix theta1Grad2toN = Theta1Gradient.cutColumnN(0);
-        Matrix regularizeTheta1 = Theta1.cutColumnN(0).scalarMultiplication(lambda / Xdata.getColumns());
-        theta1Grad2toN = theta1Grad2toN.matrixAddition(regularizeTheta1);
-        Theta1Gradient = theta1Grad1stCol.stickToMatrix(theta1Grad2toN);
+        regulariseGradient(Theta1Gradient, Theta1);
+        regulariseGradient(Theta2Gradient, Theta2);
+    }
 
-        Matrix theta2Grad1stCol = Theta2Gradient.extractColumn(0);
-        Matrix theta2Grad2toN = Theta2Gradient.cutColumnN(0);
-        Matrix regularizeTheta2 = Theta2.cutColumnN(0).scalarMultiplication(lambda / Xdata.getColumns());
-        theta2Grad2toN = theta2Grad2toN.matrixAddition(regularizeTheta2);
-        Theta2Gradient = theta2Grad1stCol.stickToMatrix(theta2Grad2toN);
+    // Adds (lambda / n) * Theta to every column of a gradient except the bias column.
+    private void regulariseGradient(Matrix gradient, Matrix theta) {
+        gradient.cutColumnN(0).addScaledInPlace(theta.cutColumnN(0), lambda / Xdata.getColumns());
     }
 
     // Computes the derivative of elements by using back-propagation.
     // Once again, code is vectorised to take advantage of improving
     // the linear algebra library.
+    // Each shard runs the network forward and back over its rows, several
+    // shards running on the pool, and their sums are added together before
+    // being averaged.
     private void recomputeGradientsMatrices() {
-        feedForward();
-        Matrix delta3 = feedForwardMap.get("a3").matrixAddition(binaryLabels.scalarMultiplication(-1));
-        Matrix delta3Temp = delta3.matrixMultiplication(Theta2);
-        Matrix delta3NoFirstColumn = delta3Temp.cutColumnN(0);
-        Matrix derivativeOfz2 = sigmoidGradient(feedForwardMap.get("z2"));
-        Matrix delta2 = delta3NoFirstColumn.hadamardProduct(derivativeOfz2);
-        delta2 = delta2.transpose();
-        Matrix delta2TtimesA1 = delta2.matrixMultiplication(feedForwardMap.get("a1"));
-        Matrix sumTheta1GradDelta2A1 = Theta1Gradient.matrixAddition(delta2TtimesA1);
-        Theta1Gradient = sumTheta1GradDelta2A1.scalarMultiplication(1.0 / Xdata.getRows());
-        delta3 = delta3.transpose();
-        Matrix delta3TtimesA2 = delta3.matrixMultiplication(feedForwardMap.get("a2"));
-        Matrix sumTheta2GradDelta3A2 = Theta2Gradient.matrixAddition(delta3TtimesA2);
-        Theta2Gradient = sumTheta2GradDelta3A2.scalarMultiplication(1.0/Xdata.getRows());
+        double m = batchInputs.getRows();
+        if (shards.length == 1) {
+            shards[0].compute();
+        } else {
+            options.getPool().invoke(new ShardTask(0, shards.length));
+        }
+        Theta1Gradient.addInPlace(shards[0].theta1Sum).scaleInPlace(1.0 / m);
+        Theta2Gradient.addInPlace(shards[0].theta2Sum).scaleInPlace(1.0 / m);
         regulariseGradients();
     }
 
-    // Returns the numerical result of the derivative of the sigmoid function.
-    // result = g = sigmoid(z) .* (1 - sigmoid(z))
-    private Matrix sigmoidGradient(Matrix mat) {
-        return sigmoidFunction(mat).hadamardProduct(sigmoidFunction(mat).nMinusMatrix(1));
+    // Some consecutive rows of a batch, all of them unless training is sharded,
+    // with the activations and deltas of the forward and backward pass over them.
+    // Each shard has its own so that shards can be worked on at the same time.
+    private final class Shard {
+
+        // sparseA1 holds the same rows as a1 when the inputs are sparse, or is null.
+        Shard(Matrix a1, SparseMatrix sparseA1, Matrix labels) {
+            int m = a1.getRows();
+            this.a1 = a1;
+            this.sparseA1 = sparseA1;
+            z2 = newMatrix(m, hiddenLayerSize);
+            a2 = newMatrix(m, hiddenLayerSize + 1);
+            a2.extractColumn(0).fill(1);
+            hiddenActivations = a2.cutColumnN(0);
+            z3 = newMatrix(m, numLabels);
+            a3 = newMatrix(m, numLabels);
+            delta3 = newMatrix(m, numLabels);
+            delta3TimesTheta2 = newMatrix(m, hiddenLayerSize + 1);
+            delta2 = newMatrix(m, hiddenLayerSize);
+            theta1Sum = newMatrix(Theta1.getRows(), Theta1.getColumns());
+            theta2Sum = newMatrix(Theta2.getRows(), Theta2.getColumns());
+
+            MatrixExpression y = MatrixExpression.of(labels);
+            MatrixExpression a3Expression = MatrixExpression.of(a3);
+            costExpression = y.negate().times(a3Expression.log())
+                    .minus(y.subtractedFrom(1).times(a3Expression.subtractedFrom(1).log()));
+            delta3Expression = a3Expression.minus(y);
+            // The sigmoid gradient g(z2) = sigmoid(z2) .* (1 - sigmoid(z2)) is taken
+            // from the activations the forward pass already stored rather than
+            // computing the sigmoid again.
+            MatrixExpression sigmoidOfZ2 = hiddenActivations.expression();
+            delta2Expression = delta3TimesTheta2.cutColumnN(0).expression()
+                    .times(sigmoidOfZ2.times(sigmoidOfZ2.subtractedFrom(1)));
+        }
+
+        // Runs the forward and backward pass over this shard's rows, leaving the
+        // sums of their costs and gradients in cost, theta1Sum and theta2Sum.
+        // Columns of 1 are prepended to take into account bias, a1 already
+        // holds its bias column and the bias column of a2 is filled once,
+        // hiddenActivations is a view of the remaining columns of a2.
+        // The first layer's products use sparseA1 when there is one.
+        void compute() {
+            if (sparseA1 != null) {
+                sparseA1.multiplyByTransposeInto(Theta1, z2);
+            } else {
+                a1.multiplyByTransposeInto(Theta1, z2);
+            }
+            z2.sigmoidInto(hiddenActivations);
+            a2.multiplyByTransposeInto(Theta2, z3);
+            z3.sigmoidInto(a3);
+            cost = costExpression.sum();
+            delta3Expression.evaluateInto(delta3);
+            delta3.multiplyInto(Theta2, delta3TimesTheta2);
+            delta2Expression.evaluateInto(delta2);
+            if (sparseA1 != null) {
+                sparseA1.premultiplyByTransposeInto(delta2, theta1Sum);
+            } else {
+                delta2.transposeMultiplyInto(a1, theta1Sum);
+            }
+            delta3.transposeMultiplyInto(a2, theta2Sum);
+        }
+
+        // Adds another shard's sums to this one's.
+        void absorb(Shard other) {
+            cost += other.cost;
+            theta1Sum.addInPlace(other.theta1Sum);
+            theta2Sum.addInPlace(other.theta2Sum);
+        }
+
+        private final Matrix a1;
+        private final SparseMatrix sparseA1;
+        private final Matrix z2;
+        private final Matrix a2;
+        private final Matrix hiddenActivations;
+        private final Matrix z3;
+        private final Matrix a3;
+        private final Matrix delta3;
+        private final Matrix delta3TimesTheta2;
+        private final Matrix delta2;
+        private final Matrix theta1Sum;
+        private final Matrix theta2Sum;
+        private final MatrixExpression costExpression;
+        private final MatrixExpression delta3Expression;
+        private final MatrixExpression delta2Expression;
+        private double cost;
+    }
+
+    // Preprocesses drawings[from:to] into the same rows of inputs, leaving their
+    // bias column alone. The range is halved until each task has one drawing.
+    private final class PreprocessTask extends RecursiveAction {
+
+        PreprocessTask(List<? extends List<Point>> drawings, Matrix inputs, int from, int to) {
+            this.drawings = drawings;
+            this.inputs = inputs;
+            this.from = from;
+            this.to = to;
+        }
+
+        protected void compute() {
+            if (to - from == 1) {
+                preprocess(drawings.get(from)).copyInto(inputs.rowRange(from, to).cutColumnN(0));
+                return;
+            }
+            int middle = (from + to) / 2;
+            invokeAll(new PreprocessTask(drawings, inputs, from, middle), new PreprocessTask(drawings, inputs, middle, to));
+        }
+
+        private final List<? extends List<Point>> drawings;
+        private final Matrix inputs;
+        private final int from;
+        private final int to;
     }
 
-    // Performs the sigmoid function on every element of a matrix.
-    private Matrix sigmoidFunction(Matrix mat) {
-        Matrix result = new Matrix(new double[mat.getRows()][mat.getColumns()]);
-        for (int i = 0; i < result.getRows(); i++) {
-            for (int j = 0; j < result.getColumns(); j++) {
-                double valueToBeSet = 1 / (1 + Math.exp(-1 * mat.objectAtPoint(i, j)));
-                result.setObjectAtPoint(i, j, valueToBeSet);
+    // Computes shards[from:to] in parallel and sums them into shards[from].
+    // The range is halved the same way every time, so the sums are always
+    // added up in the same order whichever threads end up doing the work.
+    private final class ShardTask extends RecursiveAction {
+
+        ShardTask(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        protected void compute() {
+            if (to - from == 1) {
+                shards[from].compute();
+                return;
             }
+            int middle = (from + to) / 2;
+            invokeAll(new ShardTask(from, middle), new ShardTask(middle, to));
+            shards[from].absorb(shards[middle]);
         }
-        return result;
+
+        private final int from;
+        private final int to;
+    }
+
+    // Performs the sigmoid function on every element of a matrix.
+    private Matrix sigmoidFunction(Matrix mat) {
+        return mat.sigmoidInto(newMatrix(mat.getRows(), mat.getColumns()));
     }
 
     // labels are converted to binary vectors because logistic units
@@ -262,7 +689,7 @@ public class NeuralNetworkNum {
     // 1 0 0
     // 0 1 0
     private Matrix labelsToBinary() {
-        Matrix newY = new Matrix(new double[Ydata.getRows()][numLabels]);
+        Matrix newY = newMatrix(Ydata.getRows(), numLabels);
         for (int i = 0; i < newY.getRows(); i++) {
             int YbinaryIndex = (int)Ydata.objectAtPoint(i, 0);// - 1;
             newY.setObjectAtPoint(i, YbinaryIndex, 1);
@@ -272,7 +699,7 @@ public class NeuralNetworkNum {
 
     // Randomly initialises all connections to break symmetry
     private Matrix randInitializeWeights(int layersIn, int layersOut) {
-        Matrix result = new Matrix(new double[layersOut][layersIn + 1]);
+        Matrix result = newMatrix(layersOut, layersIn + 1);
         for (int i = 0; i < result.getRows(); i++) {
             for (int j = 0; j < result.getColumns(); j++) {
                 double randomValue = rGen.nextDouble() * 2 * epsilonInit - epsilonInit;
@@ -282,6 +709,11 @@ public class NeuralNetworkNum {
         return result;
     }
 
+    // A matrix of zeros in the precision this network runs in.
+    private Matrix newMatrix(int rows, int columns) {
+        return precision == Precision.FLOAT ? new FloatMatrix(rows, columns) : new Matrix(rows, columns);
+    }
+
     // Shorthand printing for debugging.
     private void printSimp(String str) {
         System.out.println(str);
@@ -296,7 +728,38 @@ public class NeuralNetworkNum {
     private Matrix Xdata;
     private Matrix Ydata;
     private Matrix binaryLabels;
+    private TrainingOptions options;
+    private Optimizer optimizer;
+    // Theta1 and Theta2, and their gradients, in the order the optimizer sees them.
+    private Matrix[] weights;
+    private Matrix[] weightGradients;
+    // Held out by holdOutValidationSet, null without a validation set.
+    private Matrix validationData;
+    private Matrix validationLabels;
+    // How training is going, kept by checkProgress.
+    private long trainingStart;
+    private double previousCost;
+    private double bestValidationCost;
+    private int bestIteration;
+    // When the validation cost last fell by more than the minimum improvement, and to what.
+    private double improvedValidationCost;
+    private int improvedIteration;
+    private Matrix bestTheta1;
+    private Matrix bestTheta2;
     private Random rGen;
-    private HashMap<String, Matrix> feedForwardMap;
     private int maxIters;
+    private Precision precision;
+    private double rejectionMargin;
+
+    // Preallocated by allocateTrainingBuffers.
+    // trainingInputs is the training data with its bias column.
+    private Matrix trainingInputs;
+    private Matrix batchInputs;
+    private Matrix batchLabels;
+    // The same as trainingInputs and batchInputs when the data is sparse, otherwise null.
+    private SparseMatrix sparseInputs;
+    private SparseMatrix sparseBatchInputs;
+    private Shard[] shards;
+    private MatrixExpression theta1SquaredSum;
+    private MatrixExpression theta2SquaredSum;
 }
@@ -0,0 +1,222 @@
+/**
+ * Updates a network's weights from their gradients after each step of
+ * gradient descent.
+ * Plain gradient descent steps a fixed distance down the gradient.
+ * The others remember previous gradients so they need far fewer steps
+ * to reach the same cost:
+ * momentum and Nesterov momentum keep a running velocity that builds up
+ * along directions the gradient keeps pointing in and cancels out
+ * where it zigzags, RMSProp divides each weight's step by a running
+ * average of its gradient's size so every weight moves at a similar rate,
+ * and Adam does both.
+ * Any state is kept in matrices the same shape and precision as the
+ * weights, allocated once before training, so steps don't allocate.
+ * An optimizer holds the state for one network's training at a time.
+ */
+public abstract class Optimizer {
+
+    // Keeps divisions by a running average of the gradient's size finite.
+    private static final double epsilon = 1e-8;
+
+    private Optimizer(double learningRate) {
+        if (learningRate <= 0) {
+            throw new IllegalArgumentException("Learning rate must be positive: " + learningRate);
+        }
+        this.learningRate = learningRate;
+    }
+
+    // theta = theta - learningRate * gradient
+    public static Optimizer gradientDescent(double learningRate) {
+        return new GradientDescent(learningRate);
+    }
+
+    // velocity = momentum * velocity - learningRate * gradient
+    // theta = theta + velocity
+    public static Optimizer momentum(double learningRate, double momentum) {
+        return new Momentum(learningRate, momentum, false);
+    }
+
+    // As momentum but the step looks ahead along the updated velocity:
+    // theta = theta + momentum * velocity - learningRate * gradient
+    public static Optimizer nesterov(double learningRate, double momentum) {
+        return new Momentum(learningRate, momentum, true);
+    }
+
+    // meanSquare = decay * meanSquare + (1 - decay) * gradient.^2
+    // theta = theta - learningRate * gradient ./ (sqrt(meanSquare) + epsilon)
+    public static Optimizer rmsProp(double learningRate, double decay) {
+        return new RmsProp(learningRate, decay);
+    }
+
+    // Adam with the bias correction of the original paper folded into the step size.
+    // mean = beta1 * mean + (1 - beta1) * gradient
+    // meanSquare = beta2 * meanSquare + (1 - beta2) * gradient.^2
+    // theta = theta - learningRate * sqrt(1 - beta2^t) / (1 - beta1^t) * mean ./ (sqrt(meanSquare) + epsilon)
+    public static Optimizer adam(double learningRate, double beta1, double beta2) {
+        return new Adam(learningRate, beta1, beta2);
+    }
+
+    // Adam with the usual beta1 = 0.9 and beta2 = 0.999.
+    public static Optimizer adam(double learningRate) {
+        return adam(learningRate, 0.9, 0.999);
+    }
+
+    public double getLearningRate() {
+        return learningRate;
+    }
+
+    // Called once before training with the weights that will be updated and
+    // the matrices their gradients will be written to, in the same order.
+    // Allocates any state and resets it from any earlier training.
+    void initialise(Matrix[] parameters, Matrix[] gradients) {
+    }
+
+    // Updates every parameter in place from the current value of its gradient.
+    abstract void step(Matrix[] parameters, Matrix[] gradients);
+
+    // A matrix of zeros shaped like each parameter, in the same precision.
+    private static Matrix[] zerosLike(Matrix[] parameters) {
+        Matrix[] result = new Matrix[parameters.length];
+        for (int k = 0; k < parameters.length; k++) {
+            result[k] = parameters[k].like(parameters[k].getRows(), parameters[k].getColumns());
+        }
+        return result;
+    }
+
+    private static void checkRate(String name, double rate) {
+        if (rate < 0 || rate >= 1) {
+            throw new IllegalArgumentException(name + " must be in [0, 1): " + rate);
+        }
+    }
+
+    private static final class GradientDescent extends Optimizer {
+
+        GradientDescent(double learningRate) {
+            super(learningRate);
+        }
+
+        void step(Matrix[] parameters, Matrix[] gradients) {
+            for (int k = 0; k < parameters.length; k++) {
+                parameters[k].addScaledInPlace(gradients[k], -1 * getLearningRate());
+            }
+        }
+    }
+
+    private static final class Momentum extends Optimizer {
+
+        Momentum(double learningRate, double momentum, boolean isNesterov) {
+            super(learningRate);
+            checkRate("Momentum", momentum);
+            this.momentum = momentum;
+            this.isNesterov = isNesterov;
+        }
+
+        void initialise(Matrix[] parameters, Matrix[] gradients) {
+            velocities = zerosLike(parameters);
+        }
+
+        void step(Matrix[] parameters, Matrix[] gradients) {
+            for (int k = 0; k < parameters.length; k++) {
+                velocities[k].scaleInPlace(momentum).addScaledInPlace(gradients[k], -1 * getLearningRate());
+                if (isNesterov) {
+                    parameters[k].addScaledInPlace(velocities[k], momentum)
+                            .addScaledInPlace(gradients[k], -1 * getLearningRate());
+                } else {
+                    parameters[k].addInPlace(velocities[k]);
+                }
+            }
+        }
+
+        private final double momentum;
+        private final boolean isNesterov;
+        private Matrix[] velocities;
+    }
+
+    private static final class RmsProp extends Optimizer {
+
+        RmsProp(double learningRate, double decay) {
+            super(learningRate);
+            checkRate("Decay", decay);
+            this.decay = decay;
+        }
+
+        void initialise(Matrix[] parameters, Matrix[] gradients) {
+            meanSquares = zerosLike(parameters);
+            updates = zerosLike(parameters);
+            meanSquareExpressions = new MatrixExpression[parameters.length];
+            updateExpressions = new MatrixExpression[parameters.length];
+            for (int k = 0; k < parameters.length; k++) {
+                MatrixExpression gradient = gradients[k].expression();
+                MatrixExpression meanSquare = meanSquares[k].expression();
+                meanSquareExpressions[k] = meanSquare.times(decay).plus(gradient.square().times(1 - decay));
+                updateExpressions[k] = gradient.dividedBy(meanSquare.sqrt().plus(epsilon));
+            }
+        }
+
+        void step(Matrix[] parameters, Matrix[] gradients) {
+            for (int k = 0; k < parameters.length; k++) {
+                meanSquareExpressions[k].evaluateInto(meanSquares[k]);
+                updateExpressions[k].evaluateInto(updates[k]);
+                parameters[k].addScaledInPlace(updates[k], -1 * getLearningRate());
+            }
+        }
+
+        private final double decay;
+        private Matrix[] meanSquares;
+        private Matrix[] updates;
+        private MatrixExpression[] meanSquareExpressions;
+        private MatrixExpression[] updateExpressions;
+    }
+
+    private static final class Adam extends Optimizer {
+
+        Adam(double learningRate, double beta1, double beta2) {
+            super(learningRate);
+            checkRate("Beta1", beta1);
+            checkRate("Beta2", beta2);
+            this.beta1 = beta1;
+            this.beta2 = beta2;
+        }
+
+        void initialise(Matrix[] parameters, Matrix[] gradients) {
+            steps = 0;
+            means = zerosLike(parameters);
+            meanSquares = zerosLike(parameters);
+            updates = zerosLike(parameters);
+            meanExpressions = new MatrixExpression[parameters.length];
+            meanSquareExpressions = new MatrixExpression[parameters.length];
+            updateExpressions = new MatrixExpression[parameters.length];
+            for (int k = 0; k < parameters.length; k++) {
+                MatrixExpression gradient = gradients[k].expression();
+                MatrixExpression mean = means[k].expression();
+                MatrixExpression meanSquare = meanSquares[k].expression();
+                meanExpressions[k] = mean.times(beta1).plus(gradient.times(1 - beta1));
+                meanSquareExpressions[k] = meanSquare.times(beta2).plus(gradient.square().times(1 - beta2));
+                updateExpressions[k] = mean.dividedBy(meanSquare.sqrt().plus(epsilon));
+            }
+        }
+
+        void step(Matrix[] parameters, Matrix[] gradients) {
+            steps++;
+            double stepSize = getLearningRate() * Math.sqrt(1 - Math.pow(beta2, steps)) / (1 - Math.pow(beta1, steps));
+            for (int k = 0; k < parameters.length; k++) {
+                meanExpressions[k].evaluateInto(means[k]);
+                meanSquareExpressions[k].evaluateInto(meanSquares[k]);
+                updateExpressions[k].evaluateInto(updates[k]);
+                parameters[k].addScaledInPlace(updates[k], -1 * stepSize);
+            }
+        }
+
+        private final double beta1;
+        private final double beta2;
+        private int steps;
+        private Matrix[] means;
+        private Matrix[] meanSquares;
+        private Matrix[] updates;
+        private MatrixExpression[] meanExpressions;
+        private MatrixExpression[] meanSquareExpressions;
+        private MatrixExpression[] updateExpressions;
+    }
+
+    private final double learningRate;
+}
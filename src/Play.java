@@ -5,6 +5,8 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.MouseEvent;
 import java.util.ArrayList;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
 //Creates the Graphical User Interface
 public class Play extends JFrame implements MouseInputListener{
@@ -14,19 +16,28 @@ public class Play extends JFrame implements MouseInputListener{
     private static final boolean debugging = false;
 
     //Constructor that generates the board and components in a window
+    // The window appears straight away, Submit is only enabled once
+    // the network has loaded, with a progress bar shown while it trains.
     public Play() {
         JPanel content = new JPanel();
         GroupLayout layout = new GroupLayout(content);
         content.setLayout(layout);
 
         JPanel options = new JPanel();
-        GridLayout choice = new GridLayout(4, 0);
+        GridLayout choice = new GridLayout(5, 0);
         options.setLayout(choice);
-        JButton b2 = new JButton("Submit");
+        final JButton b2 = new JButton("Submit");
+        b2.setEnabled(false);
+        final JProgressBar networkProgress = new JProgressBar(0, 100);
+        networkProgress.setStringPainted(true);
+        networkProgress.setString("Loading network");
         JButton b3 = new JButton("New Game");
         JButton b4 = new JButton("Help");
         JButton player = new JButton("Current Player");
 
+        // The drawing is predicted in the background, Submit is disabled
+        // until the prediction finishes, successfully or not, so drawings
+        // are judged one at a time.
         b2.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent actionEvent){
                 int k = 0;
@@ -38,30 +49,49 @@ public class Play extends JFrame implements MouseInputListener{
                 }
                 if (debugging) System.out.println(manager.toString());
 
-                // if drawn shape is not allowed, it is whited out.
-                if (!manager.predict(pointArray, returnPosition())) {
-                    if (debugging) System.out.println("You cannot draw that!");
-                    currFrame.setColor(Color.white);
-                    for (Point p : pointArray) {
-                        currFrame.drawLine(p.x, p.y, p.x, p.y);
-                    }
-                    currFrame.setColor(Color.black);
-                }
-
-                if (debugging) {
-                    System.out.println("Player: " + manager.getCurrentPlayer());
-                    System.out.println("Board: " + manager.toString());
-                    System.out.println("Winner: " + manager.winner());
-                }
-                if (manager.winner().equals(Player.X) || manager.winner().equals(Player.O)) {
-                    manager.winmes();
-                    setVisible(false);
-                    close();
-                }
                 // pointArray must be reinitalised each
                 // submission so that it only contains
                 // the points from the most recent shape.
+                final ArrayList<Point> drawing = pointArray;
                 pointArray = new ArrayList<Point>();
+                b2.setEnabled(false);
+                // gameManager completes the prediction on the event dispatch thread.
+                manager.predict(drawing, returnPosition()).thenAccept(new Consumer<Boolean>() {
+                    public void accept(Boolean allowed) {
+                        // if drawn shape is not allowed, it is whited out.
+                        if (!allowed) {
+                            if (debugging) System.out.println("You cannot draw that!");
+                            currFrame.setColor(Color.white);
+                            for (Point p : drawing) {
+                                currFrame.drawLine(p.x, p.y, p.x, p.y);
+                            }
+                            currFrame.setColor(Color.black);
+                        }
+
+                        if (debugging) {
+                            System.out.println("Player: " + manager.getCurrentPlayer());
+                            System.out.println("Board: " + manager.toString());
+                            System.out.println("Winner: " + manager.winner());
+                        }
+                        if (manager.winner().equals(Player.X) || manager.winner().equals(Player.O)) {
+                            manager.winmes();
+                            setVisible(false);
+                            close();
+                        }
+                    }
+                }).whenCompleteAsync(new BiConsumer<Void, Throwable>() {
+                    // Submit comes back however the prediction ended, a failure
+                    // is reported rather than leaving the game stuck.
+                    public void accept(Void ignored, Throwable failure) {
+                        b2.setEnabled(true);
+                        if (failure != null) {
+                            failure.printStackTrace();
+                            Throwable cause = failure.getCause() != null ? failure.getCause() : failure;
+                            JOptionPane.showMessageDialog(Play.this, "Failed to judge the drawing: " + cause,
+                                    "Noughts and Crosses", JOptionPane.ERROR_MESSAGE);
+                        }
+                    }
+                }, ClassificationService.eventDispatchThread);
             }
         });
 
@@ -88,6 +118,30 @@ public class Play extends JFrame implements MouseInputListener{
         options.add(b3);
         options.add(b4);
         options.add(player);
+        options.add(networkProgress);
+
+        // Shows how training is going until the network is ready.
+        final Timer progressTimer = new Timer(100, new ActionListener() {
+            public void actionPerformed(ActionEvent actionEvent) {
+                int percent = (int) (100 * manager.classifierProgress());
+                networkProgress.setValue(percent);
+                if (percent > 0) networkProgress.setString("Training network " + percent + "%");
+            }
+        });
+        progressTimer.start();
+        manager.whenClassifierReady().whenCompleteAsync(new BiConsumer<NeuralNetworkNum, Throwable>() {
+            public void accept(NeuralNetworkNum network, Throwable failure) {
+                progressTimer.stop();
+                if (failure != null) {
+                    failure.printStackTrace();
+                    networkProgress.setString("Failed to load network");
+                    return;
+                }
+                networkProgress.setValue(100);
+                networkProgress.setString("Ready");
+                b2.setEnabled(true);
+            }
+        }, ClassificationService.eventDispatchThread);
         UserInputPanel p = new UserInputPanel();
         layout.setHorizontalGroup(
                 layout.createSequentialGroup()
@@ -0,0 +1,8 @@
+// The floating point precision a Matrix stores its elements in.
+// DOUBLE is the default, FLOAT halves memory use and bandwidth
+// at the cost of roughly 7 rather than 16 significant digits.
+
+enum Precision
+{
+    DOUBLE, FLOAT
+}
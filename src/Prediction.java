@@ -0,0 +1,81 @@
+/**
+ * What the network made of one drawing: the label it predicts along with
+ * the probability it gives each label, from the same forward pass.
+ * The network classifies one label against all the others, so the
+ * probabilities are independent of one another and needn't sum to 1.
+ * The margin between the two most probable labels says how clear cut the
+ * prediction is, a prediction whose margin is below the network's rejection
+ * margin is too close to call. See NeuralNetworkNum.setRejectionMargin.
+ */
+
+public final class Prediction {
+
+    Prediction(int label, double[] probabilities, double rejectionMargin) {
+        this.label = label;
+        this.probabilities = probabilities;
+        this.rejectionMargin = rejectionMargin;
+        // Insertion sort, there are only ever a handful of labels.
+        // Ties keep the lower label first, as the predicted label does.
+        order = new int[probabilities.length];
+        for (int i = 0; i < order.length; i++) {
+            int j = i;
+            while (j > 0 && probabilities[order[j - 1]] < probabilities[i]) {
+                order[j] = order[j - 1];
+                j--;
+            }
+            order[j] = i;
+        }
+        double first = order.length > 0 ? probabilities[order[0]] : 0;
+        double second = order.length > 1 ? probabilities[order[1]] : 0;
+        margin = first - second;
+    }
+
+    // The most probable label.
+    public int getLabel() {
+        return label;
+    }
+
+    // The probability the network gives the drawing having label.
+    public double getProbability(int label) {
+        return probabilities[label];
+    }
+
+    // A copy of the probability of every label, indexed by label.
+    public double[] getProbabilities() {
+        return probabilities.clone();
+    }
+
+    // How much more probable the predicted label is than the next most probable.
+    public double getMargin() {
+        return margin;
+    }
+
+    // The margin below which a prediction is rejected.
+    public double getRejectionMargin() {
+        return rejectionMargin;
+    }
+
+    // Whether the prediction is too close to call to be trusted.
+    public boolean isRejected() {
+        return margin < rejectionMargin;
+    }
+
+    // The k most probable labels, most probable first.
+    public int[] topLabels(int k) {
+        if (k < 0) throw new IllegalArgumentException("k must not be negative: " + k);
+        int[] result = new int[Math.min(k, order.length)];
+        System.arraycopy(order, 0, result, 0, result.length);
+        return result;
+    }
+
+    public String toString() {
+        return "Prediction " + label + " (margin " + margin + (isRejected() ? ", rejected)" : ")");
+    }
+
+    private final int label;
+    private final double[] probabilities;
+    private final double rejectionMargin;
+    private final double margin;
+    // Labels from most to least probable.
+    private final int[] order;
+}
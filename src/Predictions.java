@@ -0,0 +1,41 @@
+/**
+ * What the network made of a batch of drawings, see NeuralNetworkNum.predictBatch.
+ * Row i of the probabilities is the network's output for drawing i, the
+ * probability it gives each label, and its label is the most probable one.
+ */
+
+public final class Predictions {
+
+    Predictions(Prediction[] predictions, Matrix probabilities) {
+        this.predictions = predictions;
+        this.probabilities = probabilities;
+    }
+
+    // Number of drawings predicted.
+    public int size() {
+        return predictions.length;
+    }
+
+    // The prediction for drawing i.
+    public Prediction get(int i) {
+        return predictions[i];
+    }
+
+    // The label predicted for drawing i.
+    public int getLabel(int i) {
+        return predictions[i].getLabel();
+    }
+
+    // The probability the network gives drawing i having label.
+    public double getProbability(int i, int label) {
+        return probabilities.objectAtPoint(i, label);
+    }
+
+    // One row per drawing and one column per label.
+    public Matrix getProbabilities() {
+        return probabilities;
+    }
+
+    private final Prediction[] predictions;
+    private final Matrix probabilities;
+}
@@ -0,0 +1,58 @@
+/**
+ * Plain Java implementations of the matrix kernels.
+ * Loops are unrolled by four so the JIT can turn them into vector
+ * instructions where it is able to, and reductions use four independent
+ * accumulators to break the dependency chain on the sum.
+ */
+public final class ScalarKernels extends MatrixKernels {
+
+    public String name() {
+        return "scalar";
+    }
+
+    public double dot(double[] x, int xFrom, double[] y, int yFrom, int length) {
+        double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int j = 0;
+        for (; j + 3 < length; j += 4) {
+            s0 += x[xFrom + j] * y[yFrom + j];
+            s1 += x[xFrom + j + 1] * y[yFrom + j + 1];
+            s2 += x[xFrom + j + 2] * y[yFrom + j + 2];
+            s3 += x[xFrom + j + 3] * y[yFrom + j + 3];
+        }
+        for (; j < length; j++) {
+            s0 += x[xFrom + j] * y[yFrom + j];
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    public void axpy(double alpha, double[] x, int xFrom, double[] y, int yFrom, int length) {
+        int j = 0;
+        for (; j + 3 < length; j += 4) {
+            y[yFrom + j] += alpha * x[xFrom + j];
+            y[yFrom + j + 1] += alpha * x[xFrom + j + 1];
+            y[yFrom + j + 2] += alpha * x[xFrom + j + 2];
+            y[yFrom + j + 3] += alpha * x[xFrom + j + 3];
+        }
+        for (; j < length; j++) {
+            y[yFrom + j] += alpha * x[xFrom + j];
+        }
+    }
+
+    public void multiply(double[] x, int xFrom, double[] y, int yFrom, int length) {
+        for (int j = 0; j < length; j++) {
+            y[yFrom + j] *= x[xFrom + j];
+        }
+    }
+
+    public void scale(double alpha, double[] y, int from, int length) {
+        for (int j = from; j < from + length; j++) {
+            y[j] *= alpha;
+        }
+    }
+
+    public void sigmoid(double[] x, int xFrom, double[] y, int yFrom, int length) {
+        for (int j = 0; j < length; j++) {
+            y[yFrom + j] = 1 / (1 + Math.exp(-x[xFrom + j]));
+        }
+    }
+}
@@ -0,0 +1,238 @@
+/**
+ * A matrix which only stores its non zero elements, in compressed sparse
+ * row (CSR) form: the column and value of every non zero element, row
+ * after row, and where each row's elements start.
+ * Rasterised drawings are mostly blank paper, so multiplying them by the
+ * network's first layer this way only does work for the inked pixels.
+ * It supports just the products the first layer needs, the dense
+ * operand and result are double precision matrices.
+ * Like Matrix, a run of rows can be taken as a view sharing the storage.
+ */
+
+import java.util.Arrays;
+
+public class SparseMatrix {
+
+    // Below this fraction of non zero elements inputs are multiplied in CSR form.
+    // benchmarks.SparseBenchmark times both first layer products of a training
+    // step, 200 examples by 2501 inputs by 25 hidden units. On one core the dense
+    // products take about 16.5ms at any density, the sparse ones 2.1ms at 10%,
+    // 4.5ms at 26% (the drawings), 6.9ms at 40%, 9.3ms at 55%, 11.3ms at 70% and
+    // 16.1ms at 100%, so on one core sparse always wins. The dense products are
+    // split across the pool though and the sparse ones aren't, so with two cores
+    // or more dense catches up where sparse is only twice as fast, around half.
+    public static final double densityThreshold = 0.5;
+
+    // Copies the non zero elements of a dense matrix.
+    public SparseMatrix(Matrix dense) {
+        this(dense.getRows(), dense.getColumns(), countNonZeros(dense, 0, dense.getRows()));
+        int p = 0;
+        for (int i = 0; i < rows; i++) {
+            rowStart[i] = p;
+            for (int j = 0; j < columns; j++) {
+                double value = dense.objectAtPoint(i, j);
+                if (value != 0) {
+                    columnIndices[p] = j;
+                    values[p++] = value;
+                }
+            }
+        }
+        rowStart[rows] = p;
+    }
+
+    // An empty rows*columns matrix with room for capacity non zero elements,
+    // to be filled with gatherRowsFrom.
+    public SparseMatrix(int rows, int columns, int capacity) {
+        this(new int[rows + 1], new int[capacity], new double[capacity], 0, rows, columns);
+    }
+
+    private SparseMatrix(int[] rowStart, int[] columnIndices, double[] values, int firstRow, int rows, int columns) {
+        this.rowStart = rowStart;
+        this.columnIndices = columnIndices;
+        this.values = values;
+        this.firstRow = firstRow;
+        this.rows = rows;
+        this.columns = columns;
+    }
+
+    // Fraction of the elements of a dense matrix that are not zero.
+    public static double density(Matrix dense) {
+        double elements = (double) dense.getRows() * dense.getColumns();
+        return elements == 0 ? 0 : countNonZeros(dense, 0, dense.getRows()) / elements;
+    }
+
+    // Whether a dense matrix is worth converting before it is multiplied.
+    public static boolean isWorthUsing(Matrix dense) {
+        return dense.getPrecision() == Precision.DOUBLE && density(dense) < densityThreshold;
+    }
+
+    private static int countNonZeros(Matrix dense, int from, int to) {
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            for (int j = 0; j < dense.getColumns(); j++) {
+                if (dense.objectAtPoint(i, j) != 0) count++;
+            }
+        }
+        return count;
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    public int getColumns() {
+        return columns;
+    }
+
+    // Number of non zero elements stored.
+    public int nonZeros() {
+        return rowStart[firstRow + rows] - rowStart[firstRow];
+    }
+
+    // Number of non zero elements in row i.
+    public int nonZerosInRow(int i) {
+        return rowStart[firstRow + i + 1] - rowStart[firstRow + i];
+    }
+
+    // A view of rows [from, to), sharing this matrix's storage.
+    public SparseMatrix rowRange(int from, int to) {
+        if (from < 0 || to > rows || from > to) {
+            System.err.println("Row range [" + from + ", " + to + ") outside num rows (" + rows + ")");
+            return null;
+        }
+        return new SparseMatrix(rowStart, columnIndices, values, firstRow + from, to - from, columns);
+    }
+
+    public double objectAtPoint(int row, int col) {
+        if (row < 0 || row >= rows || col < 0 || col >= columns) {
+            throw new IndexOutOfBoundsException("Index outside " + getRows() + "*" + getColumns() + " matrix: " + row + ", " + col);
+        }
+        int end = rowStart[firstRow + row + 1];
+        for (int p = rowStart[firstRow + row]; p < end; p++) {
+            if (columnIndices[p] == col) return values[p];
+        }
+        return 0;
+    }
+
+    // Refills this matrix with rows rowIndices[from], rowIndices[from + 1], ...
+    // of source, one for each row of this matrix.
+    // This must have room for their non zero elements and not be a view.
+    public SparseMatrix gatherRowsFrom(SparseMatrix source, int[] rowIndices, int from) {
+        if (source.columns != columns || from + rows > rowIndices.length || firstRow != 0) {
+            System.out.println("Matrix dimensions incompatible: " + source.columns + " != " + columns +
+                    " || " + (from + rows) + " > " + rowIndices.length);
+            return null;
+        }
+        int p = 0;
+        for (int i = 0; i < rows; i++) {
+            int row = source.firstRow + rowIndices[from + i];
+            int start = source.rowStart[row];
+            int length = source.rowStart[row + 1] - start;
+            if (p + length > values.length) {
+                throw new IllegalStateException("Not enough room for " + (p + length) + " non zero elements");
+            }
+            rowStart[i] = p;
+            System.arraycopy(source.columnIndices, start, columnIndices, p, length);
+            System.arraycopy(source.values, start, values, p, length);
+            p += length;
+        }
+        rowStart[rows] = p;
+        return this;
+    }
+
+    // Room needed to gather any n rows of this matrix into another.
+    public int largestNonZeros(int n) {
+        int[] counts = new int[rows];
+        for (int i = 0; i < rows; i++) {
+            counts[i] = nonZerosInRow(i);
+        }
+        Arrays.sort(counts);
+        int result = 0;
+        for (int i = 0; i < Math.min(n, rows); i++) {
+            result += counts[rows - 1 - i];
+        }
+        return result;
+    }
+
+    // destination = this * b'
+    // b is dense and n*columns, destination is rows*n.
+    // Each element is a dot product over just this matrix's non zero elements.
+    public Matrix multiplyByTransposeInto(Matrix b, Matrix destination) {
+        if (b.getColumns() != columns || !destination.hasSize(rows, b.getRows())) {
+            System.out.println("Matrix dimensions incompatible: " + columns + " != " + b.getColumns() +
+                    " || " + destination.getRows() + "*" + destination.getColumns() + " != " + rows + "*" + b.getRows());
+            return null;
+        }
+        Matrix dense = denseOperand(b);
+        double[] bData = dense.getData();
+        Matrix result = denseResult(destination);
+        double[] resultData = result.getData();
+        for (int i = 0; i < rows; i++) {
+            int start = rowStart[firstRow + i];
+            int end = rowStart[firstRow + i + 1];
+            for (int h = 0; h < dense.getRows(); h++) {
+                int bRow = dense.index(h, 0);
+                double sum = 0;
+                for (int p = start; p < end; p++) {
+                    sum += values[p] * bData[bRow + columnIndices[p]];
+                }
+                resultData[result.index(i, h)] = sum;
+            }
+        }
+        if (result != destination) result.copyInto(destination);
+        return destination;
+    }
+
+    // destination = a' * this
+    // a is dense and rows*n, destination is n*columns.
+    // Each row of a is scattered into destination at this row's non zero columns.
+    public Matrix premultiplyByTransposeInto(Matrix a, Matrix destination) {
+        if (a.getRows() != rows || !destination.hasSize(a.getColumns(), columns)) {
+            System.out.println("Matrix dimensions incompatible: " + rows + " != " + a.getRows() +
+                    " || " + destination.getRows() + "*" + destination.getColumns() + " != " + a.getColumns() + "*" + columns);
+            return null;
+        }
+        Matrix dense = denseOperand(a);
+        double[] aData = dense.getData();
+        Matrix result = denseResult(destination);
+        double[] resultData = result.fill(0).getData();
+        for (int i = 0; i < rows; i++) {
+            int start = rowStart[firstRow + i];
+            int end = rowStart[firstRow + i + 1];
+            for (int h = 0; h < dense.getColumns(); h++) {
+                double scale = aData[dense.index(i, h)];
+                if (scale == 0) continue;
+                int resultRow = result.index(h, 0);
+                for (int p = start; p < end; p++) {
+                    resultData[resultRow + columnIndices[p]] += scale * values[p];
+                }
+            }
+        }
+        if (result != destination) result.copyInto(destination);
+        return destination;
+    }
+
+    // The products read dense operands as double precision with contiguous rows.
+    private static Matrix denseOperand(Matrix matrix) {
+        matrix = matrix.toPrecision(Precision.DOUBLE);
+        return matrix.getColumnStride() == 1 ? matrix : matrix.compactCopy();
+    }
+
+    // The products write into destination directly when it is a double
+    // precision matrix with contiguous rows, or else into a copy.
+    private static Matrix denseResult(Matrix destination) {
+        if (destination.getPrecision() == Precision.DOUBLE && destination.getColumnStride() == 1) {
+            return destination;
+        }
+        return new Matrix(destination.getRows(), destination.getColumns());
+    }
+
+    // Where each row's elements start in columnIndices and values,
+    // row i ends where row i + 1 starts.
+    private final int[] rowStart;
+    private final int[] columnIndices;
+    private final double[] values;
+    private final int firstRow;
+    private final int rows;
+    private final int columns;
+}
@@ -0,0 +1,233 @@
+/**
+ * Turns the points of a drawing straight into the 50x50 grid of features the
+ * network takes, without the full resolution matrix that
+ * makeMatrixFromPointsArrayList, emulateWriting and scaleDown go through.
+ * The features are the same ones, to within rounding:
+ * each point inks a 10x10 block of pixels, pixels near ink are shaded by the
+ * brush emulateWriting uses, and each feature is scaleDown's Gaussian weighted
+ * sum of the pixels in its window.
+ * Only pixels within the brush's reach of ink are ever non zero, so the drawing
+ * is worked through in tiles of tileSize*tileSize pixels, only those the points
+ * reach being visited. Time and memory go with the length of the strokes rather
+ * than the size of the drawing, bar one counter per tile.
+ * The buffers used are kept and reused, once a rasterizer has seen its largest
+ * drawing it no longer allocates. It is not safe to use from more than one
+ * thread at once.
+ */
+
+import java.awt.*;
+import java.util.Arrays;
+import java.util.List;
+
+public final class StrokeRasterizer {
+
+    // These match Matrix: the grid is newEdgeLength on each side, each point
+    // inks fillOutRadius pixels around it and maxDrawingEmulationRadius is
+    // how far the brush reaches.
+    public static final int gridSize = 50;
+    private static final int fillOutRadius = 10;
+    private static final int brushRadius = 5;
+    private static final double sigma = 1.0;
+    private static final int tileSize = 32;
+    // Pixels of ink either side of a tile that can shade it.
+    private static final int inkBefore = brushRadius - 1;
+    private static final int inkAfter = brushRadius;
+    private static final int inkedSize = tileSize + inkBefore + inkAfter;
+    // Points up to pointsBefore before a tile's first pixel and pointsAfter
+    // after its last can ink pixels that shade it.
+    private static final int pointsBefore = inkBefore + fillOutRadius / 2 - 1;
+    private static final int pointsAfter = inkAfter + fillOutRadius / 2;
+
+    public StrokeRasterizer() {
+        brush = GaussianKernel.get(brushRadius, sigma);
+        features = new double[gridSize * gridSize];
+        isInk = new boolean[inkedSize * inkedSize];
+        shading = new double[tileSize * tileSize];
+        tileCounts = new int[0];
+        pointsByTile = new int[0];
+    }
+
+    // The features of a drawing, as a new gridSize*gridSize matrix.
+    public Matrix rasterise(List<Point> drawing) {
+        return rasterise(drawing, new Matrix(gridSize, gridSize));
+    }
+
+    // Writes the features of a drawing into destination, which must be gridSize*gridSize.
+    // The drawing is docked to its bounding box with a border around it, as
+    // makeMatrixFromPointsArrayList does. A drawing must have at least one point.
+    public Matrix rasterise(List<Point> drawing, Matrix destination) {
+        if (drawing.isEmpty()) throw new IllegalArgumentException("Drawing has no points");
+        if (!destination.hasSize(gridSize, gridSize)) return null;
+        Point first = drawing.get(0);
+        int minX = first.x;
+        int maxX = first.x;
+        int minY = first.y;
+        int maxY = first.y;
+        for (int p = 1; p < drawing.size(); p++) {
+            Point point = drawing.get(p);
+            minX = Math.min(minX, point.x);
+            maxX = Math.max(maxX, point.x);
+            minY = Math.min(minY, point.y);
+            maxY = Math.max(maxY, point.y);
+        }
+        rows = maxY - minY + 1;
+        columns = maxX - minX + 1;
+        rowPadding = 6 * rows / gridSize;
+        colPadding = 6 * columns / gridSize;
+        rows += 2 * rowPadding;
+        columns += 2 * colPadding;
+        rowStepSize = rows / gridSize;
+        columnStepSize = columns / gridSize;
+        // Kept from the last drawing unless its size calls for another.
+        int windowRadius = Math.max(rowStepSize, columnStepSize) / 2;
+        if (window == null || window.getRadius() != windowRadius) window = GaussianKernel.get(windowRadius, sigma);
+        Arrays.fill(features, 0);
+
+        // scaleDown's windows are empty below two pixels a step.
+        if (rowStepSize / 2 > 0 && columnStepSize / 2 > 0) {
+            sortPointsByTile(drawing, minX, minY);
+            for (int tile = 0; tile < tilesDown * tilesAcross; tile++) {
+                if (tileCounts[tile] < tileCounts[tile + 1]) {
+                    shadeTile(drawing, minX, minY, tile);
+                }
+            }
+        }
+
+        double stepArea = rowStepSize * columnStepSize;
+        for (int i = 0; i < gridSize; i++) {
+            for (int j = 0; j < gridSize; j++) {
+                destination.setObjectAtPoint(i, j, stepArea == 0 ? 0 : features[i * gridSize + j] / stepArea);
+            }
+        }
+        return destination;
+    }
+
+    // Counting sort of the points into the tiles they can shade, leaving the points
+    // of tile t in pointsByTile[tileCounts[t]:tileCounts[t + 1]], in drawing order.
+    private void sortPointsByTile(List<Point> drawing, int minX, int minY) {
+        tilesDown = (rows + tileSize - 1) / tileSize;
+        tilesAcross = (columns + tileSize - 1) / tileSize;
+        if (tileCounts.length < tilesDown * tilesAcross + 1) {
+            tileCounts = new int[tilesDown * tilesAcross + 1];
+        }
+        Arrays.fill(tileCounts, 0, tilesDown * tilesAcross + 1, 0);
+        int total = 0;
+        for (int pass = 0; pass < 2; pass++) {
+            for (int p = 0; p < drawing.size(); p++) {
+                Point point = drawing.get(p);
+                int row = rowPadding + point.y - minY;
+                int column = colPadding + point.x - minX;
+                int lastTileDown = Math.min(tilesDown - 1, Math.floorDiv(row + pointsBefore, tileSize));
+                int lastTileAcross = Math.min(tilesAcross - 1, Math.floorDiv(column + pointsBefore, tileSize));
+                for (int tk = Math.max(0, Math.floorDiv(row - pointsAfter, tileSize)); tk <= lastTileDown; tk++) {
+                    for (int tl = Math.max(0, Math.floorDiv(column - pointsAfter, tileSize)); tl <= lastTileAcross; tl++) {
+                        int tile = tk * tilesAcross + tl;
+                        if (pass == 0) {
+                            tileCounts[tile + 1]++;
+                            total++;
+                        } else {
+                            pointsByTile[tileCounts[tile]++] = p;
+                        }
+                    }
+                }
+            }
+            if (pass == 0) {
+                if (pointsByTile.length < total) pointsByTile = new int[total];
+                // Now where each tile's points start.
+                for (int tile = 0; tile < tilesDown * tilesAcross; tile++) {
+                    tileCounts[tile + 1] += tileCounts[tile];
+                }
+            }
+        }
+        // Filling moved each start along to the next tile's start.
+        for (int tile = tilesDown * tilesAcross; tile > 0; tile--) {
+            tileCounts[tile] = tileCounts[tile - 1];
+        }
+        tileCounts[0] = 0;
+    }
+
+    // Inks the tile's points, shades the pixels of the tile near ink as
+    // emulateWriting does, and adds the pixels into the features.
+    private void shadeTile(List<Point> drawing, int minX, int minY, int tile) {
+        int top = tile / tilesAcross * tileSize;
+        int left = tile % tilesAcross * tileSize;
+        int bottom = Math.min(rows, top + tileSize);
+        int right = Math.min(columns, left + tileSize);
+        // isInk covers the tile and the ink around it that can shade it,
+        // starting at (inkTop, inkLeft).
+        int inkTop = top - inkBefore;
+        int inkLeft = left - inkBefore;
+        Arrays.fill(isInk, false);
+        for (int t = tileCounts[tile]; t < tileCounts[tile + 1]; t++) {
+            Point point = drawing.get(pointsByTile[t]);
+            int row = rowPadding + point.y - minY;
+            int column = colPadding + point.x - minX;
+            int fromRow = Math.max(Math.max(0, inkTop), row - fillOutRadius / 2);
+            int toRow = Math.min(Math.min(rows, inkTop + inkedSize), row + fillOutRadius / 2);
+            int fromColumn = Math.max(Math.max(0, inkLeft), column - fillOutRadius / 2);
+            int toColumn = Math.min(Math.min(columns, inkLeft + inkedSize), column + fillOutRadius / 2);
+            for (int k = fromRow; k < toRow; k++) {
+                Arrays.fill(isInk, (k - inkTop) * inkedSize + fromColumn - inkLeft,
+                        (k - inkTop) * inkedSize + toColumn - inkLeft, true);
+            }
+        }
+
+        // Ink is visited in the order emulateWriting visits it, so each pixel
+        // adds up its shading in the same order and comes to the same value.
+        Arrays.fill(shading, 0);
+        for (int pk = 0; pk < inkedSize; pk++) {
+            for (int pl = 0; pl < inkedSize; pl++) {
+                if (!isInk[pk * inkedSize + pl]) continue;
+                int inkRow = inkTop + pk;
+                int inkColumn = inkLeft + pl;
+                int fromRow = Math.max(top, inkRow - brushRadius);
+                int toRow = Math.min(bottom, inkRow + brushRadius);
+                int fromColumn = Math.max(left, inkColumn - brushRadius);
+                int toColumn = Math.min(right, inkColumn + brushRadius);
+                for (int k = fromRow; k < toRow; k++) {
+                    for (int l = fromColumn; l < toColumn; l++) {
+                        if (isInk[(k - inkTop) * inkedSize + l - inkLeft]) continue;
+                        shading[(k - top) * tileSize + l - left] += brush.brushWeight(k - inkRow, l - inkColumn);
+                    }
+                }
+            }
+        }
+
+        // scaleDown's window for feature i covers pixels i * step - step / 2
+        // up to i * step + step / 2, leaving out the border bar its last pixel.
+        int rowHalf = rowStepSize / 2;
+        int columnHalf = columnStepSize / 2;
+        for (int k = Math.max(top, rowPadding); k < Math.min(bottom, rows - rowPadding + 1); k++) {
+            int i = (k + rowHalf) / rowStepSize;
+            if (i >= gridSize || k + rowHalf - i * rowStepSize >= 2 * rowHalf) continue;
+            for (int l = Math.max(left, colPadding); l < Math.min(right, columns - colPadding + 1); l++) {
+                int j = (l + columnHalf) / columnStepSize;
+                if (j >= gridSize || l + columnHalf - j * columnStepSize >= 2 * columnHalf) continue;
+                double value = isInk[(k - inkTop) * inkedSize + l - inkLeft] ? 255 : shading[(k - top) * tileSize + l - left];
+                if (value == 0) continue;
+                double weight = window.weight(i * rowStepSize - k, j * columnStepSize - l);
+                features[i * gridSize + j] += weight * value * rowStepSize * columnStepSize;
+            }
+        }
+    }
+
+    // What emulateWriting adds around ink, and scaleDown's weights for the drawing being rasterised.
+    private final GaussianKernel brush;
+    private GaussianKernel window;
+    // Scratch buffers, reused from drawing to drawing.
+    // features holds the sums of scaleDown's windows, isInk and shading a tile.
+    private final double[] features;
+    private final boolean[] isInk;
+    private final double[] shading;
+    private int[] tileCounts;
+    private int[] pointsByTile;
+    // Of the drawing being rasterised, at full resolution.
+    private int rows;
+    private int columns;
+    private int rowPadding;
+    private int colPadding;
+    private int rowStepSize;
+    private int columnStepSize;
+    private int tilesDown;
+    private int tilesAcross;
+}
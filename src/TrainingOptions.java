@@ -0,0 +1,177 @@
+/**
+ * Settings for how a NeuralNetworkNum is trained.
+ * The defaults train exactly as the network always has, full batch
+ * gradient descent over every example at once with a fixed step size,
+ * for every one of the iterations asked for.
+ * Setters return the options so they can be chained, eg:
+ * new TrainingOptions().setBatchSize(64).setOptimizer(Optimizer.adam(0.01))
+ */
+import java.util.concurrent.ForkJoinPool;
+
+public class TrainingOptions {
+
+    // A batch size that puts every training example in a single batch.
+    public static final int fullBatch = 0;
+
+    // Told how training is going, see setProgressListener.
+    public interface ProgressListener {
+        // done of at most total iterations, or epochs, have finished and the cost is now cost.
+        void progress(int done, int total, double cost);
+    }
+
+    public TrainingOptions() {
+        batchSize = fullBatch;
+        shards = 1;
+        pool = ForkJoinPool.commonPool();
+    }
+
+    // Number of examples in each step of mini-batch gradient descent.
+    // fullBatch, or any size at least the number of examples, runs plain
+    // gradient descent where each iteration steps once over every example.
+    // Smaller batches make each iteration an epoch over the examples in a
+    // random order, taking a step after every batch.
+    public TrainingOptions setBatchSize(int batchSize) {
+        if (batchSize < 0) {
+            throw new IllegalArgumentException("Batch size must not be negative: " + batchSize);
+        }
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    // How the weights are updated from their gradients after each step.
+    // null uses plain gradient descent at the network's own learning rate.
+    public TrainingOptions setOptimizer(Optimizer optimizer) {
+        this.optimizer = optimizer;
+        return this;
+    }
+
+    public Optimizer getOptimizer() {
+        return optimizer;
+    }
+
+    // Number of pieces each batch is split into for data-parallel training.
+    // Every shard runs its own forward and backward pass on the pool and the
+    // gradients of the shards are then summed pairwise, always in the same tree.
+    // For a given number of shards training gives the same result bit for bit
+    // however many threads the pool has, a single shard is the same as unsharded.
+    public TrainingOptions setShards(int shards) {
+        if (shards < 1) {
+            throw new IllegalArgumentException("Need at least one shard: " + shards);
+        }
+        this.shards = shards;
+        return this;
+    }
+
+    public int getShards() {
+        return shards;
+    }
+
+    // The pool shards are run on, the common pool by default.
+    public TrainingOptions setPool(ForkJoinPool pool) {
+        this.pool = pool;
+        return this;
+    }
+
+    public ForkJoinPool getPool() {
+        return pool;
+    }
+
+    // Fraction of the examples held out of training to validate the network on.
+    // The weights with the lowest validation cost are the ones kept at the end.
+    public TrainingOptions setValidationFraction(double validationFraction) {
+        if (validationFraction < 0 || validationFraction >= 1) {
+            throw new IllegalArgumentException("Validation fraction must be in [0, 1): " + validationFraction);
+        }
+        this.validationFraction = validationFraction;
+        return this;
+    }
+
+    public double getValidationFraction() {
+        return validationFraction;
+    }
+
+    // Stops once validation cost has not improved, by more than the minimum
+    // validation improvement, for this many iterations, or epochs, in a row.
+    // 0 never stops for this reason, it has no effect without a validation set.
+    public TrainingOptions setPatience(int patience) {
+        if (patience < 0) {
+            throw new IllegalArgumentException("Patience must not be negative: " + patience);
+        }
+        this.patience = patience;
+        return this;
+    }
+
+    public int getPatience() {
+        return patience;
+    }
+
+    // How much validation cost has to fall by to count as an improvement for
+    // patience, so a cost creeping down by tiny amounts doesn't keep training
+    // going. The weights kept are the lowest cost ones however little lower.
+    public TrainingOptions setMinValidationImprovement(double minValidationImprovement) {
+        if (minValidationImprovement < 0) {
+            throw new IllegalArgumentException("Minimum validation improvement must not be negative: " +
+                    minValidationImprovement);
+        }
+        this.minValidationImprovement = minValidationImprovement;
+        return this;
+    }
+
+    public double getMinValidationImprovement() {
+        return minValidationImprovement;
+    }
+
+    // Stops once the cost changes by less than this between two
+    // iterations, or epochs. 0 never stops for this reason.
+    public TrainingOptions setMinCostChange(double minCostChange) {
+        if (minCostChange < 0) {
+            throw new IllegalArgumentException("Minimum cost change must not be negative: " + minCostChange);
+        }
+        this.minCostChange = minCostChange;
+        return this;
+    }
+
+    public double getMinCostChange() {
+        return minCostChange;
+    }
+
+    // Stops after the first iteration, or epoch, to finish once training
+    // has run for this long. 0 has no time limit.
+    public TrainingOptions setTimeBudgetMillis(long timeBudgetMillis) {
+        if (timeBudgetMillis < 0) {
+            throw new IllegalArgumentException("Time budget must not be negative: " + timeBudgetMillis);
+        }
+        this.timeBudgetMillis = timeBudgetMillis;
+        return this;
+    }
+
+    public long getTimeBudgetMillis() {
+        return timeBudgetMillis;
+    }
+
+    // Called after every iteration, or epoch, on the thread doing the training.
+    // Training may finish early, before done reaches total. null tells no one.
+    public TrainingOptions setProgressListener(ProgressListener progressListener) {
+        this.progressListener = progressListener;
+        return this;
+    }
+
+    public ProgressListener getProgressListener() {
+        return progressListener;
+    }
+
+    private int batchSize;
+    private Optimizer optimizer;
+    private int shards;
+    private ForkJoinPool pool;
+    private double validationFraction;
+    private int patience;
+    private double minValidationImprovement;
+    private double minCostChange;
+    private long timeBudgetMillis;
+    private ProgressListener progressListener;
+}
@@ -12,8 +12,16 @@ import java.io.BufferedReader;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiFunction;
+import java.util.zip.CRC32;
 
 //Class plays the game
 public class gameManager {
@@ -21,8 +29,13 @@ public class gameManager {
     // Files to load training data from
     private static final String trainingFile = "dataOXO.txt";
     private static final String labelFile = "labelsOXO.txt";
+    // The same data converted with DatasetFile, which loads far faster.
+    // Used instead of the text files unless they have changed since.
+    private static final String datasetFile = "dataOXO.bin";
+    // The trained network is saved here and reused until the training data changes.
+    private static final String modelFile = "modelOXO.bin";
 
-    // Number of iteration to train the neural network for
+    // Most iterations to train the neural network for
     // More iteration == greater accuracy
     // But only up until a certain point at which the
     // model over-fits the data.
@@ -30,14 +43,32 @@ public class gameManager {
     // it may be very accurate but would not generalise well.
     private static final int iterations = 30;
 
+    // So a fraction of the drawings are held back to check the network on
+    // as it trains. Once its cost on them hasn't fallen by more than
+    // minValidationImprovement for patience iterations training stops, and
+    // the weights with the lowest cost on them are kept either way.
+    private static final double validationFraction = 0.1;
+    private static final int patience = 10;
+    private static final double minValidationImprovement = 1e-3;
+
+    // Precision the network is trained and run in.
+    // FLOAT halves the memory taken by the training data and weights
+    // and makes no noticeable difference to accuracy.
+    private static final Precision precision = Precision.DOUBLE;
+
+    // Drawings the network can't tell apart from the other shape by at least
+    // this much are treated as unreadable and have to be drawn again.
+    // A clear O or X usually has a margin of 0.7 or more.
+    private static final double rejectionMargin = 0.2;
+
     // Game manager constructor initialises all iVars
-    // Neural networks trains upon construction which is a bit of a wait.
+    // The neural network is loaded from the model file, it is only trained,
+    // which is a bit of a wait, the first time or after the training data changes.
+    // Either way that happens in the background, see classificationService.
     // Board positions are initialised to ""
     public gameManager() {
         boardInternal = new String[3][3];
-        Matrix xData = getTrainingData(trainingFile);
-        Matrix yData = getTrainingData(labelFile);
-        classifier = new NeuralNetworkNum(xData, yData, iterations, null, null);
+        classifier = classificationService();
         currentPlayer = null;
         indexToPointConversions = new HashMap<Integer, Point>();
         int k = 0;
@@ -53,13 +84,51 @@ public class gameManager {
     // determine whether its a X or an O.
     // The location of the drawing is also given so that the
     // manager's internal state can be updated accordingly.
+    // The network runs in the background, the result completes on the event
+    // dispatch thread once the board has been updated, true if the drawing
+    // was allowed.
+    public CompletableFuture<Boolean> predict(ArrayList<Point> points, final int boxIndex) {
+        if (points == null || points.isEmpty() || !isEmpty(boxIndex)) {
+            return CompletableFuture.completedFuture(false);
+        }
+        return classifier.classify(points).handleAsync(new BiFunction<Prediction, Throwable, Boolean>() {
+            public Boolean apply(Prediction prediction, Throwable failure) {
+                if (failure != null) {
+                    failure.printStackTrace();
+                    System.err.println("Failed to classify drawing");
+                    return false;
+                }
+                return play(prediction, boxIndex);
+            }
+        }, ClassificationService.eventDispatchThread);
+    }
+
+    // Completes once the network is ready to predict, on the background thread,
+    // or completes exceptionally if it couldn't be loaded or trained.
+    public CompletableFuture<NeuralNetworkNum> whenClassifierReady() {
+        return classifier.getClassifier();
+    }
+
+    // Fraction of the network's training done, 1 once it is ready.
+    public double classifierProgress() {
+        return classifier.getProgress();
+    }
+
+    // Whether nothing has been drawn in the box yet.
+    private boolean isEmpty(int boxIndex) {
+        Point boardPoint = indexToPointConversions.get(boxIndex);
+        return boardInternal[boardPoint.x][boardPoint.y].equals("");
+    }
+
+    // Plays what the network made of a drawing in the box, if it is allowed.
     // currentPlayer is lazily instantiated to take on the value of
     // whatever the first shape drawn is.
-    public boolean predict(ArrayList<Point> points, int boxIndex) {
+    // Drawings the network isn't sure about are turned down like wrong shapes.
+    private boolean play(Prediction result, int boxIndex) {
         Point boardPoint = indexToPointConversions.get(boxIndex);
-        if (!boardInternal[boardPoint.x][boardPoint.y].equals("")
-                || points == null) return false;
-        int prediction = classifier.predict(points);
+        // The box may have been filled while the drawing was being predicted.
+        if (result.isRejected() || !isEmpty(boxIndex)) return false;
+        int prediction = result.getLabel();
         if (currentPlayer == null) {
             currentPlayer = prediction == 0 ? Player.O : Player.X;
         }
@@ -88,12 +157,117 @@ public class gameManager {
                 + " | " + boardInternal[2][2] + " \n";
     }
 
+    // The service the network is loaded into, which is shared by every game so
+    // that a new game doesn't load it again. The first game to ask starts it.
+    private static synchronized ClassificationService classificationService() {
+        if (classificationService == null) {
+            classificationService = new ClassificationService(new ClassificationService.Loader() {
+                public NeuralNetworkNum load(TrainingOptions.ProgressListener progress) {
+                    return loadOrTrainClassifier(progress);
+                }
+            });
+        }
+        return classificationService;
+    }
+
+    // Loads the network saved by an earlier game if it was trained on the same data
+    // and settings, otherwise trains a new one and saves it for next time.
+    // progress is told how training goes.
+    private static NeuralNetworkNum loadOrTrainClassifier(TrainingOptions.ProgressListener progress) {
+        long checksum = trainingChecksum();
+        try {
+            NeuralNetworkNum saved = NeuralNetworkNum.load(modelFile, checksum, precision);
+            if (saved != null) {
+                saved.setRejectionMargin(rejectionMargin);
+                return saved;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.err.println("Failed to load model, retraining");
+        }
+        Matrix[] trainingData = loadTrainingData();
+        Matrix xData = trainingData[0];
+        Matrix yData = trainingData[1];
+        TrainingOptions options = new TrainingOptions()
+                .setValidationFraction(validationFraction)
+                .setPatience(patience)
+                .setMinValidationImprovement(minValidationImprovement)
+                .setProgressListener(progress);
+        NeuralNetworkNum result = new NeuralNetworkNum(xData, yData, iterations, null, null, precision, options);
+        result.setRejectionMargin(rejectionMargin);
+        try {
+            result.save(modelFile, checksum);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.err.println("Failed to save model");
+        }
+        return result;
+    }
+
+    // CRC32 of the training files and the settings the network is trained with,
+    // a saved model is only reused while this stays the same.
+    private static long trainingChecksum() {
+        CRC32 checksum = new CRC32();
+        if (isDatasetUpToDate()) {
+            try {
+                // The dataset's header holds the checksum of its contents.
+                checksum.update(ByteBuffer.allocate(8).putLong(DatasetFile.checksum(datasetFile)).array());
+            } catch (IOException e) {
+                // Left to loadTrainingData to report when training.
+            }
+        } else {
+            for (String filename : new String[]{trainingFile, labelFile}) {
+                try {
+                    checksum.update(Files.readAllBytes(Paths.get(filename)));
+                } catch (IOException e) {
+                    // Left to getTrainingData to report when training.
+                }
+            }
+        }
+        String settings = iterations + " " + precision + " " + validationFraction + " " + patience + " " +
+                minValidationImprovement;
+        checksum.update(settings.getBytes(StandardCharsets.UTF_8));
+        return checksum.getValue();
+    }
+
+    // The features and labels to train on, from the dataset file if it is up
+    // to date and can be read, otherwise from the text files.
+    private static Matrix[] loadTrainingData() {
+        if (isDatasetUpToDate()) {
+            try {
+                return DatasetFile.read(datasetFile, precision);
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.err.println("Failed to load " + datasetFile + ", reading the text files");
+            }
+        }
+        return new Matrix[]{getTrainingData(trainingFile), getTrainingData(labelFile)};
+    }
+
+    // Whether there is a dataset file at least as new as the text files.
+    private static boolean isDatasetUpToDate() {
+        try {
+            Path dataset = Paths.get(datasetFile);
+            if (!Files.isRegularFile(dataset)) return false;
+            for (String filename : new String[]{trainingFile, labelFile}) {
+                Path text = Paths.get(filename);
+                if (Files.isRegularFile(text) &&
+                        Files.getLastModifiedTime(text).compareTo(Files.getLastModifiedTime(dataset)) > 0) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
     // Reads the contents of a file into an arrayList
     // This is then turned into a matrix.
     // Data format:
     // 1 training example per new line
     // each feature of the example separated by a space.
-    public Matrix getTrainingData(String filename) {
+    public static Matrix getTrainingData(String filename) {
         ArrayList<String> allLines = new ArrayList<String>();
         String currentLine;
         BufferedReader trainingData;
@@ -194,7 +368,8 @@ public class gameManager {
 
 
     private String[][] boardInternal;
-    private NeuralNetworkNum classifier;
+    private ClassificationService classifier;
     private Player currentPlayer;
     private HashMap<Integer, Point> indexToPointConversions;
+    private static ClassificationService classificationService;
 }
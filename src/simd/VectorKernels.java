@@ -0,0 +1,138 @@
+/**
+ * Matrix kernels written with the JDK Vector API so every loop runs on
+ * the widest SIMD registers the CPU has (AVX2, AVX-512, ...).
+ * This file is kept apart from the rest of the source as it needs the
+ * incubating jdk.incubator.vector module to build and run:
+ *
+ * Compile (from src, after "javac *.java"):
+ *   javac --add-modules jdk.incubator.vector -cp . -d . simd/VectorKernels.java
+ * Run:
+ *   java --add-modules jdk.incubator.vector Play
+ *
+ * MatrixKernels picks these up at startup when both are true and uses
+ * ScalarKernels otherwise.
+ */
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+public final class VectorKernels extends MatrixKernels {
+
+    private static final VectorSpecies<Double> species = DoubleVector.SPECIES_PREFERRED;
+
+    // Constants for e^x = 2^n * e^r where x = n * ln(2) + r and |r| <= ln(2) / 2.
+    private static final double log2e = 1.4426950408889634;
+    private static final double ln2Hi = 6.93147180369123816490e-01;
+    private static final double ln2Lo = 1.90821492927058770002e-10;
+    // Adding this rounds a double to an integer held in the low bits of its mantissa.
+    private static final double roundingShift = 0x1.8p52;
+    private static final long roundingShiftBits = Double.doubleToRawLongBits(roundingShift);
+    // Inputs are clamped so 2^n stays a normal double, sigmoid is 0 or 1 to double precision by then anyway.
+    private static final double expLimit = 708;
+
+    public String name() {
+        return "vector";
+    }
+
+    public double dot(double[] x, int xFrom, double[] y, int yFrom, int length) {
+        DoubleVector sum = DoubleVector.zero(species);
+        int j = 0;
+        int bound = species.loopBound(length);
+        for (; j < bound; j += species.length()) {
+            DoubleVector vx = DoubleVector.fromArray(species, x, xFrom + j);
+            DoubleVector vy = DoubleVector.fromArray(species, y, yFrom + j);
+            sum = vx.fma(vy, sum);
+        }
+        double result = sum.reduceLanes(VectorOperators.ADD);
+        for (; j < length; j++) {
+            result += x[xFrom + j] * y[yFrom + j];
+        }
+        return result;
+    }
+
+    public void axpy(double alpha, double[] x, int xFrom, double[] y, int yFrom, int length) {
+        DoubleVector valpha = DoubleVector.broadcast(species, alpha);
+        int j = 0;
+        int bound = species.loopBound(length);
+        for (; j < bound; j += species.length()) {
+            DoubleVector vx = DoubleVector.fromArray(species, x, xFrom + j);
+            DoubleVector vy = DoubleVector.fromArray(species, y, yFrom + j);
+            vx.fma(valpha, vy).intoArray(y, yFrom + j);
+        }
+        // Fused as the lanes are, so an element comes out the same whichever
+        // call or part of a call it falls in, and products split across a
+        // pool give the same bits as on one thread.
+        for (; j < length; j++) {
+            y[yFrom + j] = Math.fma(alpha, x[xFrom + j], y[yFrom + j]);
+        }
+    }
+
+    public void multiply(double[] x, int xFrom, double[] y, int yFrom, int length) {
+        int j = 0;
+        int bound = species.loopBound(length);
+        for (; j < bound; j += species.length()) {
+            DoubleVector vx = DoubleVector.fromArray(species, x, xFrom + j);
+            DoubleVector.fromArray(species, y, yFrom + j).mul(vx).intoArray(y, yFrom + j);
+        }
+        for (; j < length; j++) {
+            y[yFrom + j] *= x[xFrom + j];
+        }
+    }
+
+    public void scale(double alpha, double[] y, int from, int length) {
+        int j = 0;
+        int bound = species.loopBound(length);
+        for (; j < bound; j += species.length()) {
+            DoubleVector.fromArray(species, y, from + j).mul(alpha).intoArray(y, from + j);
+        }
+        for (; j < length; j++) {
+            y[from + j] *= alpha;
+        }
+    }
+
+    public void sigmoid(double[] x, int xFrom, double[] y, int yFrom, int length) {
+        DoubleVector one = DoubleVector.broadcast(species, 1);
+        int j = 0;
+        int bound = species.loopBound(length);
+        for (; j < bound; j += species.length()) {
+            DoubleVector vx = DoubleVector.fromArray(species, x, xFrom + j);
+            one.div(one.add(exp(vx.neg()))).intoArray(y, yFrom + j);
+        }
+        for (; j < length; j++) {
+            y[yFrom + j] = 1 / (1 + Math.exp(-x[xFrom + j]));
+        }
+    }
+
+    // e^x for every lane, accurate to a few ulp.
+    // x is split into n * ln(2) + r, e^r comes from a degree 11 Taylor
+    // polynomial (|r| <= 0.35 so the truncation error is below 1e-14)
+    // and 2^n is built directly from its exponent bits.
+    private static DoubleVector exp(DoubleVector x) {
+        x = x.max(-expLimit).min(expLimit);
+        DoubleVector shifted = x.mul(log2e).add(roundingShift);
+        DoubleVector n = shifted.sub(roundingShift);
+        DoubleVector r = n.fma(DoubleVector.broadcast(species, -ln2Hi), x);
+        r = n.fma(DoubleVector.broadcast(species, -ln2Lo), r);
+
+        DoubleVector p = DoubleVector.broadcast(species, 1.0 / 39916800);
+        p = p.fma(r, DoubleVector.broadcast(species, 1.0 / 3628800));
+        p = p.fma(r, DoubleVector.broadcast(species, 1.0 / 362880));
+        p = p.fma(r, DoubleVector.broadcast(species, 1.0 / 40320));
+        p = p.fma(r, DoubleVector.broadcast(species, 1.0 / 5040));
+        p = p.fma(r, DoubleVector.broadcast(species, 1.0 / 720));
+        p = p.fma(r, DoubleVector.broadcast(species, 1.0 / 120));
+        p = p.fma(r, DoubleVector.broadcast(species, 1.0 / 24));
+        p = p.fma(r, DoubleVector.broadcast(species, 1.0 / 6));
+        p = p.fma(r, DoubleVector.broadcast(species, 0.5));
+        p = p.fma(r, DoubleVector.broadcast(species, 1));
+        p = p.fma(r, DoubleVector.broadcast(species, 1));
+
+        LongVector exponent = shifted.reinterpretAsLongs()
+                .sub(roundingShiftBits)
+                .add(1023)
+                .lanewise(VectorOperators.LSHL, 52);
+        return p.mul(exponent.reinterpretAsDoubles());
+    }
+}
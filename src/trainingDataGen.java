@@ -14,6 +14,8 @@ public class trainingDataGen implements Runnable {
 
     private static final String trainingFile = "dataOXO.txt";
     private static final String labelFile = "labelsOXO.txt";
+    // The drawings themselves, to rebuild the data from with DatasetBuilder.
+    private static final String strokesFile = "strokesOXO.txt";
 
     public static void main(String[] args) {
         trainingDataGen program = new trainingDataGen();
@@ -34,9 +36,9 @@ public class trainingDataGen implements Runnable {
 
             public void actionPerformed(ActionEvent actionEvent) {
                 points = drawWindow.getPointArray();
+                if (numTrainingExamples == 200) training = false;
                 addToTrainingDataFile();
                 System.out.println("Printed to file!");
-                if (numTrainingExamples == 200) training = false;
                 points = null;
                 run();
             }
@@ -48,39 +50,38 @@ public class trainingDataGen implements Runnable {
         drawWindow.setContentPane(content);
     }
 
-    // Appends a new training example and label to the datafiles
+    // Appends a new training example and label to the datafiles, and its
+    // strokes to the strokes file. The files are opened with the first
+    // example and kept open until the last.
     private void addToTrainingDataFile() {
-        numberExtractor numex = new numberExtractor();
-        ArrayList<Point> scaledPoints = numex.scalePoints(points);
-        Point[] boundingBox = numex.boundingBoxForSingleShape();
-        Matrix pointsMatrix = new Matrix(null);
-        pointsMatrix.makeMatrixFromPointsArrayList(scaledPoints, boundingBox);
-        pointsMatrix.emulateWriting();
-        Matrix convertedToRow = pointsMatrix.scaleDown().matrixToRowVector();
+        int label = numTrainingExamples < 100 ? 0 : 1;
+        StringBuilder row = new StringBuilder();
+        DatasetBuilder.appendRow(row, rasterizer.rasterise(points));
         try {
-            BufferedWriter dataWriter = new BufferedWriter(new FileWriter(trainingFile, true));
-            BufferedWriter labelWriter = new BufferedWriter(new FileWriter(labelFile, true));
-            for (int i = 0; i < convertedToRow.getColumns(); i++) {
-                dataWriter.write(String.valueOf(convertedToRow.objectAtPoint(0, i)));
-                dataWriter.write(" ");
-            }
-            dataWriter.write("\n");
-            if (numTrainingExamples < 100) {
-                labelWriter.write("0\n");
-
-            } else {
-                labelWriter.write("1\n");
+            if (dataWriter == null) {
+                dataWriter = new BufferedWriter(new FileWriter(trainingFile, true));
+                labelWriter = new BufferedWriter(new FileWriter(labelFile, true));
+                strokesWriter = new BufferedWriter(new FileWriter(strokesFile, true));
             }
+            dataWriter.write(row.toString());
+            labelWriter.write(label + "\n");
+            strokesWriter.write(DatasetBuilder.toStrokesLine(label, points));
+            strokesWriter.write("\n");
+            // Flushed each time so a closed window loses nothing.
             dataWriter.flush();
-            dataWriter.close();
             labelWriter.flush();
-            labelWriter.close();
+            strokesWriter.flush();
+            if (!training) {
+                dataWriter.close();
+                labelWriter.close();
+                strokesWriter.close();
+            }
         } catch (FileNotFoundException e) {
             e.printStackTrace();
             System.err.println("Failed to open file");
         } catch (IOException e) {
             e.printStackTrace();
-            System.err.println("Line cannot be read");
+            System.err.println("Line cannot be written");
         }
     }
 
@@ -91,4 +92,10 @@ public class trainingDataGen implements Runnable {
     private boolean training;
     private int numTrainingExamples = 0;
     private ArrayList<Point> points;
+    // The same features predict and DatasetBuilder make, which match the
+    // Matrix pipeline the older rows came from to within rounding.
+    private final StrokeRasterizer rasterizer = new StrokeRasterizer();
+    private BufferedWriter dataWriter;
+    private BufferedWriter labelWriter;
+    private BufferedWriter strokesWriter;
 }
@@ -0,0 +1,106 @@
+/**
+ * Products give the same bits whether they are computed on the calling
+ * thread or split across a pool, with whichever kernels are in use.
+ */
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class GemmKernelTest {
+
+    @BeforeEach
+    public void setUp() {
+        pool = new ForkJoinPool(4);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        Matrix.setMultiplicationPool(ForkJoinPool.commonPool());
+        Matrix.setParallelThreshold(1L << 18);
+        pool.shutdown();
+    }
+
+    @Test
+    public void vectorKernelsAreInUse() {
+        assertEquals("vector", MatrixKernels.get().name());
+    }
+
+    @Test
+    public void multiplyIsTheSameSeriallyAndOnAPool() {
+        Random rGen = new Random(3);
+        Matrix a = randomMatrix(rGen, 9, 300);
+        Matrix b = randomMatrix(rGen, 300, 1003);
+        assertSameBits(serially(a, b, multiply), onPool(a, b, multiply));
+    }
+
+    @Test
+    public void multiplyByTransposeIsTheSameSeriallyAndOnAPool() {
+        Random rGen = new Random(4);
+        Matrix a = randomMatrix(rGen, 9, 301);
+        Matrix b = randomMatrix(rGen, 1003, 301);
+        assertSameBits(serially(a, b, multiplyByTranspose), onPool(a, b, multiplyByTranspose));
+    }
+
+    @Test
+    public void transposeMultiplyIsTheSameSeriallyAndOnAPool() {
+        Random rGen = new Random(5);
+        Matrix a = randomMatrix(rGen, 300, 9);
+        Matrix b = randomMatrix(rGen, 300, 1003);
+        assertSameBits(serially(a, b, transposeMultiply), onPool(a, b, transposeMultiply));
+    }
+
+    private Matrix serially(Matrix a, Matrix b, int kind) {
+        Matrix.setMultiplicationPool(null);
+        return product(a, b, kind);
+    }
+
+    // With a threshold of 1 every tile is split as far as it goes.
+    private Matrix onPool(Matrix a, Matrix b, int kind) {
+        Matrix.setMultiplicationPool(pool);
+        Matrix.setParallelThreshold(1);
+        return product(a, b, kind);
+    }
+
+    private static Matrix product(Matrix a, Matrix b, int kind) {
+        if (kind == multiply) return a.matrixMultiplication(b);
+        if (kind == multiplyByTranspose) return a.multiplyByTranspose(b);
+        return a.transposeMultiply(b);
+    }
+
+    private static void assertSameBits(Matrix expected, Matrix actual) {
+        assertEquals(expected.getRows(), actual.getRows());
+        assertEquals(expected.getColumns(), actual.getColumns());
+        for (int i = 0; i < expected.getRows(); i++) {
+            long[] expectedRow = new long[expected.getColumns()];
+            long[] actualRow = new long[actual.getColumns()];
+            for (int j = 0; j < expected.getColumns(); j++) {
+                expectedRow[j] = Double.doubleToRawLongBits(expected.objectAtPoint(i, j));
+                actualRow[j] = Double.doubleToRawLongBits(actual.objectAtPoint(i, j));
+            }
+            assertArrayEquals(expectedRow, actualRow, "row " + i);
+        }
+    }
+
+    private static Matrix randomMatrix(Random rGen, int rows, int columns) {
+        Matrix result = new Matrix(rows, columns);
+        for (int i = 0; i < rows; i++) {
+            for (int j = 0; j < columns; j++) {
+                result.setObjectAtPoint(i, j, rGen.nextDouble() * 2 - 1);
+            }
+        }
+        return result;
+    }
+
+    private static final int multiply = 0;
+    private static final int multiplyByTranspose = 1;
+    private static final int transposeMultiply = 2;
+
+    private ForkJoinPool pool;
+}